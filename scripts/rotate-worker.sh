@@ -0,0 +1,14 @@
+#!/bin/sh
+
+# Rotates image files, as a persistent worker (run with --persistent).
+# Reads "input<TAB>output" lines and answers each with "done STATUS", so the 
+# shell is started once per slot instead of once per image. The output of 
+# convert is sent to stderr, since stdout carries the answers.
+
+export MAGICK_THREAD_LIMIT=1
+TAB=$(printf '\t')
+
+while IFS="$TAB" read -r IN OUT; do
+    convert "$IN" -rotate 90 "$OUT" 1>&2
+    echo "done $?"
+done
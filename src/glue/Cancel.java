@@ -0,0 +1,42 @@
+package glue;
+
+import java.io.IOException;
+
+import ibis.ipl.ReadMessage;
+import ibis.ipl.WriteMessage;
+
+/** 
+ * A control message sent by the JobServer to tell a PilotJob that it should 
+ * abort a job, as its result has already been received from another PilotJob.
+ */
+public class Cancel {
+
+    /** The ID of the job to abort */
+    final int jobID;
+
+    Cancel(int jobID) {
+        this.jobID = jobID;
+    }
+
+    /**
+     * Write this control message to a message, including the message header.
+     *
+     * @param wm the message to write to.
+     * @throws IOException if the write failed.
+     */
+    void write(WriteMessage wm) throws IOException {
+        Shared.writeHeader(wm, Shared.MESSAGE_CANCEL);
+        wm.writeInt(jobID);
+    }
+
+    /**
+     * Read a control message from a message whose header has already been read.
+     *
+     * @param rm the message to read from.
+     * @return the control message.
+     * @throws IOException if the read failed.
+     */
+    static Cancel read(ReadMessage rm) throws IOException {
+        return new Cancel(rm.readInt());
+    }
+}
@@ -0,0 +1,143 @@
+package glue;
+
+import ibis.ipl.IbisIdentifier;
+
+/**
+ * A ChunkPolicy decides how many jobs the JobServer hands to a PilotJob in a
+ * single batch. The adaptive policies use the remaining amount of work and
+ * the speed of each PilotJob predicted by the RuntimeModel, handing out large
+ * chunks early in the run and small chunks near the end to prevent load
+ * imbalance.
+ */
+public abstract class ChunkPolicy {
+
+    /** The model used to predict the speed of the PilotJobs */
+    RuntimeModel model;
+
+    /** The smallest chunk to hand out */
+    final int minChunk;
+
+    /** The largest chunk to hand out */
+    final int maxChunk;
+
+    ChunkPolicy(int minChunk, int maxChunk) {
+        this.minChunk = Math.max(1, minChunk);
+        this.maxChunk = Math.max(this.minChunk, maxChunk);
+    }
+
+    /**
+     * Returns the relative speed of a PilotJob.
+     *
+     * @param worker the PilotJob.
+     * @return the relative speed of the PilotJob.
+     */
+    double speed(IbisIdentifier worker) {
+        return model.speed(worker);
+    }
+
+    /**
+     * Clamps a chunk size between the smallest and largest chunk, and the
+     * number of remaining jobs.
+     *
+     * @param chunk the unclamped chunk size.
+     * @param remaining the number of jobs that have not been handed out.
+     * @return the clamped chunk size.
+     */
+    int clamp(double chunk, int remaining) {
+        int result = (int) Math.ceil(chunk);
+        result = Math.max(minChunk, Math.min(maxChunk, result));
+        return Math.min(result, remaining);
+    }
+
+    /**
+     * Decides how many jobs to hand out to a PilotJob.
+     *
+     * @param worker the PilotJob requesting work.
+     * @param remaining the number of jobs that have not been handed out.
+     * @param workers the number of active PilotJobs.
+     * @return the number of jobs to hand out.
+     */
+    abstract int chunkSize(IbisIdentifier worker, int remaining, int workers);
+
+    /** A policy that always hands out the same number of jobs. */
+    static class Fixed extends ChunkPolicy {
+
+        Fixed(int chunk) {
+            super(chunk, chunk);
+        }
+
+        int chunkSize(IbisIdentifier worker, int remaining, int workers) {
+            return clamp(minChunk, remaining);
+        }
+    }
+
+    /**
+     * Guided self-scheduling: each PilotJob receives its share of the
+     * remaining jobs, weighted by its relative speed.
+     */
+    static class Guided extends ChunkPolicy {
+
+        Guided(int minChunk, int maxChunk) {
+            super(minChunk, maxChunk);
+        }
+
+        int chunkSize(IbisIdentifier worker, int remaining, int workers) {
+            double chunk = (double) remaining / Math.max(1, workers);
+            return clamp(chunk * speed(worker), remaining);
+        }
+    }
+
+    /**
+     * Weighted factoring: jobs are handed out in rounds of one chunk per
+     * PilotJob, where each round covers half of the remaining jobs. The
+     * chunk of each PilotJob is weighted by its relative speed.
+     */
+    static class Factoring extends ChunkPolicy {
+
+        /** The chunk size of the current round */
+        double roundChunk = 0;
+
+        /** The number of chunks left in the current round */
+        int roundLeft = 0;
+
+        Factoring(int minChunk, int maxChunk) {
+            super(minChunk, maxChunk);
+        }
+
+        int chunkSize(IbisIdentifier worker, int remaining, int workers) {
+            if (roundLeft <= 0) {
+                roundLeft = Math.max(1, workers);
+                roundChunk = (double) remaining / (2 * roundLeft);
+            }
+
+            roundLeft--;
+            return clamp(roundChunk * speed(worker), remaining);
+        }
+    }
+
+    /**
+     * Creates a ChunkPolicy.
+     *
+     * @param name the name of the policy: fixed, guided, or factoring.
+     * @param minChunk the smallest chunk to hand out (the chunk size for the fixed policy).
+     * @param maxChunk the largest chunk to hand out.
+     * @param model the model used to predict the speed of the PilotJobs.
+     * @return the ChunkPolicy.
+     */
+    static ChunkPolicy create(String name, int minChunk, int maxChunk, RuntimeModel model) {
+        ChunkPolicy policy;
+
+        if (name.equals("fixed")) {
+            policy = new Fixed(minChunk);
+        } else if (name.equals("guided")) {
+            policy = new Guided(minChunk, maxChunk);
+        } else if (name.equals("factoring")) {
+            policy = new Factoring(minChunk, maxChunk);
+        } else { 
+            throw new IllegalArgumentException("Unknown schedule: " + name);
+        }
+
+        policy.model = model;
+        return policy;
+    }
+}
@@ -0,0 +1,20 @@
+package glue;
+
+import java.io.File;
+
+/**
+ * A CostEstimator estimates the cost of a job from its input file, so the
+ * JobServer can hand out the most expensive jobs first. Implementations must
+ * have a public constructor without arguments.
+ */
+public interface CostEstimator {
+
+    /**
+     * Estimates the cost of the job that processes an input file. Only the
+     * relative order of the estimates is significant.
+     *
+     * @param input the input file of the job.
+     * @return the estimated cost of the job.
+     */
+    long estimate(File input);
+}
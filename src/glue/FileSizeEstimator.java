@@ -0,0 +1,14 @@
+package glue;
+
+import java.io.File;
+
+/**
+ * The default CostEstimator, which assumes the cost of a job is proportional
+ * to the size of its input file.
+ */
+public class FileSizeEstimator implements CostEstimator {
+
+    public long estimate(File input) {
+        return input.length();
+    }
+}
@@ -1,9 +1,22 @@
 package glue;
 
-import ibis.util.RunProcess;
+import glue.util.FileTransfer;
+import glue.util.FileUtils;
+import glue.util.ProcessExecutor;
+import glue.util.ProcessExecutor.Execution;
+import glue.util.ProcessExecutor.Redirect;
 
-import java.io.Serializable;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.UUID;
+
+import ibis.ipl.ReadMessage;
+import ibis.ipl.WriteMessage;
 
 /**
  * This object represents a Job. It consists of a command array containing the command to
@@ -12,9 +25,10 @@ import java.util.Arrays;
  * 
  * @author jason
  */
-public class Job implements Serializable {
+public class Job {
 
-    private static final long serialVersionUID = 4957475242030816948L;
+    /** The job ID, which is the position of the job in the input directory listing */
+    int jobID;
 
     /** The command to execute */
     String[] command;
@@ -25,11 +39,50 @@ public class Job implements Serializable {
     /** The name of the output file */
     String outputFile;
     
-    /** The input data */
-    byte[] inputBuffer;
+    /** The input file on the JobServer, which is streamed to the PilotJob when the job is sent */
+    File input;
+
+    /** 
+     * The path of the input file on a shared file system, or null if the 
+     * input was sent to the PilotJob (only used by the PilotJob)
+     */
+    String inputPath;
+
+    /** The shared output directory the output is written to, or null (only used by the PilotJob) */
+    String outputDir;
+
+    /** 
+     * Set if the input is piped into the standard input of the command, and 
+     * the output is read from its standard output, instead of using files
+     */
+    boolean stream;
+
+    /** 
+     * Set if the command names a Java {@link Task} that is run inside the 
+     * PilotJob, instead of an executable
+     */
+    boolean task;
+
+    /** The input, if it is kept in memory to be piped into the command (only used by the PilotJob) */
+    byte[] data;
 
     /** A flag to indicate that this job is empty */
     boolean empty;
+
+    /** The estimated cost of the job (only used by the JobServer) */
+    long cost;
+
+    /** The size of the input file */
+    long size;
+
+    /** The number of times the job has been retried (only used by the JobServer) */
+    int attempts;
+
+    /** The process executing this job (only used by the PilotJob) */
+    Execution execution;
+
+    /** A flag to indicate that this job has been cancelled (only used by the PilotJob) */
+    boolean cancelled;
     
     /** Constructor to create an empty job */
     Job() {
@@ -39,65 +92,418 @@ public class Job implements Serializable {
     /**
      * Constructor to create a regular job. 
      *      
+     * @param ID the job ID.
      * @param executable path to the executable (assumed to be available on target resource).
      * @param arguments command line arguments for executable
      * @param input path to input file (on local machine) 
      * @param output path to output file (on local machine)
+     * @param stream if the input and output are piped through stdin and 
+     *     stdout, in which case their names are not passed to the executable.
+     * @param task if the executable is the class name of a Java task, in 
+     *     which case the input and output are always kept in memory.
      */
-    Job(String executable, String[] arguments, String input, String output) {
+    Job(int ID, String executable, String[] arguments, String input, String output, 
+            boolean stream, boolean task) {
         empty = false;
 
+        this.jobID = ID;
+
         this.inputFile = input;
         this.outputFile = output;
+        this.stream = stream || task;
+        this.task = task;
 
-        command = new String[arguments.length + 3];
-        command[0] = executable;
-        command[1] = input;
-        System.arraycopy(arguments, 0, command, 2, arguments.length);
-        command[command.length - 1] = output;
+        if (task) { 
+            command = new String[] { executable };
+        } else if (stream) { 
+            command = new String[arguments.length + 1];
+            command[0] = executable;
+            System.arraycopy(arguments, 0, command, 1, arguments.length);
+        } else { 
+            command = new String[arguments.length + 3];
+            command[0] = executable;
+            command[1] = input;
+            System.arraycopy(arguments, 0, command, 2, arguments.length);
+            command[command.length - 1] = output;
+        }
+    }
+
+    /**
+     * Set the input file of the job. 
+     *
+     * @param input the input file on the JobServer.
+     */
+    public void setInput(File input) {
+        this.input = input;
+    }
+
+    /**
+     * Write a batch of jobs to a message, including the message header. The 
+     * input files are streamed into the message, unless the PilotJob shares 
+     * the file system of the JobServer, in which case only their paths are 
+     * sent.
+     *
+     * @param wm the message to write to.
+     * @param batch the jobs to write.
+     * @param sharedDir the output directory if the file system is shared, or null.
+     * @throws IOException if the write failed.
+     */
+    static void writeBatch(WriteMessage wm, Job[] batch, String sharedDir) throws IOException {
+        Shared.writeHeader(wm, Shared.MESSAGE_JOBS);
+        Shared.writeString(wm, sharedDir);
+        wm.writeInt(batch.length);
+
+        for (Job job : batch) {
+            wm.writeBoolean(job.empty);
+
+            if (!job.empty) {
+                wm.writeInt(job.jobID);
+                wm.writeInt(job.command.length);
+
+                for (String s : job.command) {
+                    wm.writeString(s);
+                }
+
+                wm.writeString(job.inputFile);
+                wm.writeString(job.outputFile);
+                wm.writeBoolean(job.stream);
+                wm.writeBoolean(job.task);
+
+                if (sharedDir != null) {
+                    wm.writeString(job.input.getAbsolutePath());
+                    wm.writeLong(job.size);
+                } else {
+                    FileTransfer.send(wm, job.input);
+                }
+            }
+        }
     }
 
     /**
-     * Set the input data array of the job. 
+     * Read a batch of jobs from a message whose header has already been read.
+     * The input files are stored in the working directory as they arrive, 
+     * or kept in memory if they are piped into the command, unless they are 
+     * read from the shared file system.
      *
-     * @param inputBuffer the input data
+     * @param rm the message to read from.
+     * @return the jobs.
+     * @throws IOException if the read failed.
+     */
+    static Job[] readBatch(ReadMessage rm) throws IOException {
+        String sharedDir = Shared.readString(rm);
+        Job[] batch = new Job[rm.readInt()];
+
+        for (int i = 0; i < batch.length; i++) {
+            Job job = new Job();
+            job.empty = rm.readBoolean();
+
+            if (!job.empty) {
+                job.jobID = rm.readInt();
+                job.command = new String[rm.readInt()];
+
+                for (int c = 0; c < job.command.length; c++) {
+                    job.command[c] = rm.readString();
+                }
+
+                job.inputFile = rm.readString();
+                job.outputFile = rm.readString();
+                job.stream = rm.readBoolean();
+                job.task = rm.readBoolean();
+
+                if (sharedDir != null) {
+                    job.inputPath = rm.readString();
+                    job.size = rm.readLong();
+                    job.outputDir = sharedDir;
+                } else if (job.stream) {
+                    job.data = FileTransfer.receiveBytes(rm);
+                    job.size = job.data == null ? -1 : job.data.length;
+                } else {
+                    job.size = FileTransfer.receive(rm, new File(job.inputFile));
+                }
+            }
+
+            batch[i] = job;
+        }
+
+        return batch;
+    }
+
+    /** 
+     * Abort the job. If the job is running, its process is killed, otherwise 
+     * it will not be started.
+     */
+    public synchronized void cancel() {
+        cancelled = true;
+
+        if (execution != null) {
+            execution.cancel(true);
+        }
+    }
+
+    /**
+     * Start the process for this job, unless the job has been cancelled. The 
+     * process is started on the common ProcessExecutor, so no threads are 
+     * started for it.
+     * 
+     * @param command the command to execute.
+     * @param in the source of stdin, or null.
+     * @param out the destination of stdout.
+     * @param err the destination of stderr.
+     * @return the execution of the process.
+     * @throws IOException if the job was cancelled or the process failed to start.
+     */
+    Execution start(String[] command, Redirect in, Redirect out, Redirect err) 
+            throws IOException {
+        checkCancelled();
+
+        Execution e = ProcessExecutor.common.execute(jobID, null, command, in, out, err, 0, null);
+
+        if (e.failure() != null) {
+            throw e.failure();
+        }
+
+        // Kill the process if the job was cancelled while it was starting.
+        synchronized (this) {
+            execution = e;
+
+            if (cancelled) {
+                e.cancel(true);
+            }
+        }
+
+        return e;
+    }
+
+    /**
+     * Check that the job has not been cancelled.
+     * 
+     * @throws IOException if the job was cancelled.
+     */
+    synchronized void checkCancelled() throws IOException {
+        if (cancelled) {
+            throw new IOException("Job " + jobID + " was cancelled");
+        }
+    }
+
+    /**
+     * Returns the command to execute. On a shared file system, the input 
+     * and output file, which are the first and last argument, are replaced 
+     * by the path of the input file and of a temporary file in the output 
+     * directory. In stream mode these are not arguments, so the command is 
+     * left unchanged. 
+     * 
+     * @param output the temporary output file, or null if the file system is not shared.
+     * @return the command.
      */
-    public void setInput(byte[] inputBuffer) {
-        this.inputBuffer = inputBuffer;
+    String[] command(File output) {
+        if (inputPath == null || stream) {
+            return command;
+        }
+
+        String[] tmp = command.clone();
+        tmp[1] = inputPath;
+        tmp[tmp.length - 1] = output.getPath();
+        return tmp;
+    }
+
+    /**
+     * Returns the temporary file to write the output to on a shared file 
+     * system, as a copy of this job may be running elsewhere. The JobServer 
+     * moves the accepted one. 
+     * 
+     * @return the temporary output file, or null if the file system is not shared.
+     * @throws FileNotFoundException if the shared input file is not visible.
+     */
+    File sharedOutput() throws FileNotFoundException {
+        if (inputPath == null) {
+            return null;
+        }
+
+        if (!new File(inputPath).canRead()) { 
+            throw new FileNotFoundException("Shared input not visible: " + inputPath);
+        }
+
+        return new File(outputDir, "." + outputFile + "." + jobID + "." 
+                + UUID.randomUUID() + ".part");
+    }
+
+    /**
+     * Execute the job as a Java task on the calling thread, and return the 
+     * result. The task processes the input received in memory, and its output 
+     * is returned in memory, so no process or temporary file is needed.
+     * 
+     * @param impl the task, as loaded by the PilotJob.
+     * @return the result.
+     */
+    public Result execute(Task impl) {
+
+        File shared = null;
+
+        try {
+            long start = System.currentTimeMillis();
+
+            shared = sharedOutput();
+            checkCancelled();
+
+            System.out.println("Executing Task: " + command[0] + " " + inputFile);
+
+            byte[] input = data != null ? data : FileUtils.read(inputPath);
+
+            synchronized (this) {
+                data = null;
+            }
+
+            byte[] stderr = new byte[0];
+            byte[] output = null;
+            int status = 0;
+
+            try { 
+                output = toArray(impl.process(ByteBuffer.wrap(input)));
+            } catch (Throwable e) {
+                // Errors thrown by the task, such as a stack overflow, only 
+                // fail this job.
+                ByteArrayOutputStream err = new ByteArrayOutputStream();
+                PrintStream ps = new PrintStream(err);
+                e.printStackTrace(ps);
+                ps.close();
+
+                stderr = err.toByteArray();
+                status = 1;
+            }
+
+            if (status == 0 && shared != null) {
+                FileUtils.write(shared.getPath(), output);
+            }
+
+            long time = System.currentTimeMillis() - start;
+
+            Result result = new Result(outputFile, null, null, stderr, status, time);
+            result.jobID = jobID;
+            result.inputSize = size;
+
+            if (status == 0 && shared != null) {
+                result.outputPath = shared.getPath();
+            } else if (status == 0) {
+                result.outputData = output;
+            }
+
+            return result;
+        } catch (Exception e) {
+            if (shared != null) { 
+                shared.delete();
+            }
+
+            Result result = new Result(e);
+            result.jobID = jobID;
+            return result;
+        }
+    }
+
+    /**
+     * Returns the remaining bytes of a buffer as an array, without copying 
+     * if the buffer wraps exactly an entire array.
+     * 
+     * @param buffer the buffer, or null for no output.
+     * @return the bytes.
+     */
+    static byte[] toArray(ByteBuffer buffer) {
+        if (buffer == null) {
+            return new byte[0];
+        }
+
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+                && buffer.limit() == buffer.array().length) {
+            return buffer.array();
+        }
+
+        byte[] tmp = new byte[buffer.remaining()];
+        buffer.duplicate().get(tmp);
+        return tmp;
     }
 
     /** Execute the job and return the result */
     public Result execute() {
 
+        File shared = null;
+
         try {
             long start = System.currentTimeMillis();
 
+            shared = sharedOutput();
+
+            String[] command = command(shared);
+
             System.out.println("Executing Job: " + Arrays.toString(command));
 
-            // Store the input data on disk and release the memory buffer.
-            Shared.write(inputFile, inputBuffer);
-            inputBuffer = null;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+            // In stream mode, the input is piped into stdin, and stdout is 
+            // the output, which is kept in memory unless it can be written 
+            // in place on a shared file system.
+            Redirect in = null;
+            Redirect sink = Redirect.to(out);
+
+            if (stream) {
+                if (data != null) {
+                    in = Redirect.from(data);
+                } else {
+                    in = Redirect.from(new File(inputPath));
+                }
+
+                if (shared != null) {
+                    sink = Redirect.to(shared);
+                }
+            }
+
+            // Execute the command, and extract the exit code, stdout, and stderr. 
+            Execution e = start(command, in, sink, Redirect.to(err));
+            int status = e.waitFor();
+
+            synchronized (this) {
+                execution = null;
+                data = null;
+            }
 
-            // Execute the command.
-            RunProcess p = new RunProcess(command);
-            p.run();
+            byte[] stderr = err.toByteArray();
+            byte[] stdout = stream ? null : out.toByteArray();
+            File output = null;
 
-            // Extract the exit code, stdout, and stderr. 
-            int status = p.getExitStatus();
-            byte[] stderr = p.getStderr();
-            byte[] stdout = p.getStdout();
-            byte[] outputBuffer = null;
+            // The output file is streamed to the JobServer with the result, 
+            // or left in place on a shared file system.
+            if (status == 0 && shared == null && !stream) {
+                output = new File(outputFile);
 
-            // Read the output file.
-            if (status == 0) {
-                outputBuffer = Shared.read(outputFile);
+                if (!output.isFile()) {
+                    throw new IOException("Output file " + outputFile + " was not produced");
+                }
+            } else if (status != 0 && shared != null) { 
+                shared.delete();
+            } else if (status == 0 && shared != null && !shared.isFile()) {
+                throw new IOException("Output file " + shared + " was not produced");
             }
 
             long time = System.currentTimeMillis() - start;
 
-            return new Result(outputFile, outputBuffer, stdout, stderr, status, time);
+            Result result = new Result(outputFile, output, stdout, stderr, status, time);
+            result.jobID = jobID;
+            result.inputSize = size;
+
+            if (status == 0 && shared != null) {
+                result.outputPath = shared.getPath();
+            } else if (status == 0 && stream) {
+                result.outputData = out.toByteArray();
+            }
+
+            return result;
         } catch (Exception e) {
-            return new Result(e);
+            if (shared != null) { 
+                shared.delete();
+            }
+
+            Result result = new Result(e);
+            result.jobID = jobID;
+            return result;
         }
     }
 }
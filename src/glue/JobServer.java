@@ -1,28 +1,172 @@
 package glue;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 
+import glue.util.BufferPool;
+import glue.util.ByteBudget;
 import glue.util.FileUtils;
+import glue.util.WriteBehind;
 import ibis.ipl.Ibis;
 import ibis.ipl.IbisFactory;
 import ibis.ipl.IbisIdentifier;
 import ibis.ipl.ReadMessage;
 import ibis.ipl.ReceivePort;
+import ibis.ipl.RegistryEventHandler;
 import ibis.ipl.SendPort;
 import ibis.ipl.WriteMessage;
 
 /** 
  * A JobServer that hands out Job objects to running PilotJobs.
  * 
+ * The JobServer is split into a number of stages connected by bounded queues. 
+ * A receiver thread reads incoming messages, the dispatcher (main) thread 
+ * selects the jobs to hand out, and separate thread pools load the input 
+ * files and send the jobs to the PilotJobs. Output files are stored by a 
+ * write-behind stage. This ensures that slow disk I/O for one PilotJob does 
+ * not stall the others, and that the dispatcher does not wait for the disk.
+ * 
+ * The number of bytes of input and output files in flight is limited by a 
+ * budget. Batches whose input does not fit are deferred, while smaller 
+ * batches may still be sent, and no new results are received while the 
+ * results already received exhaust the budget.
+ * 
+ * When speculative execution is enabled, PilotJobs that ask for work after 
+ * the job queue has drained receive a copy of a job that is overdue compared 
+ * to its predicted runtime. The first result to arrive is accepted, and the 
+ * other copy is cancelled.
+ * 
+ * Each job handed out is covered by a lease, which expires if the PilotJob 
+ * does not return it within a multiple of its predicted runtime. Jobs whose 
+ * lease expires, or that were handed to a PilotJob that left or died, are 
+ * returned to the job queue.
+ * 
+ * PilotJobs that fail a much larger fraction of their jobs than the others 
+ * (for example, because a node lacks the executable or has a full disk) are 
+ * quarantined: they receive no more work, and their failed jobs are retried 
+ * elsewhere.
+ * 
  * @author jason
  */
 public class JobServer {
+
+    /** A tuple to store (PilotJob, Results) pairs that have been received */
+    static class Request {
+        IbisIdentifier source;
+        Result[] results;
+
+        /** Set if the PilotJob expects a new batch of jobs in reply */
+        boolean reply = true;
+
+        /** The jobs that could not be delivered to the PilotJob, if any */
+        Job[] lost;
+
+        /** Set if the PilotJob has left or died */
+        boolean gone;
+
+        /** Set if the results were generated by the JobServer itself */
+        boolean local;
+
+        /** If the PilotJob shares the file system of the JobServer */
+        byte shared = Shared.SHARED_UNKNOWN;
+
+        Request(IbisIdentifier source, Result[] results, boolean reply) {
+            this.source = source;
+            this.results = results;
+            this.reply = reply;
+        }
+
+        Request(IbisIdentifier source, Job[] lost) {
+            this.source = source;
+            this.results = new Result[0];
+            this.lost = lost;
+        }
+
+        /** Constructor to create a request reporting that a PilotJob has left or died */
+        Request(IbisIdentifier source) {
+            this.source = source;
+            this.results = new Result[0];
+            this.gone = true;
+        }
+    }
+
+    /** The state of a PilotJob served by this JobServer */
+    static class Worker {
+        final IbisIdentifier id;
+
+        /** The SendPort to reach the PilotJob, created on first use */
+        SendPort sp;
+
+        /** The number of messages currently being loaded or sent to the PilotJob */
+        int pending = 0;
+
+        /** Set if the empty job must be sent once all pending jobs have been sent */
+        boolean closing = false;
+
+        /** The jobs handed out to the PilotJob, in the order they were handed out */
+        final LinkedList<InFlight> running = new LinkedList<InFlight>();
+
+        /** The time the PilotJob last returned a result, or received work while idle */
+        long lastProgress;
+
+        /** The number of successful and failed jobs returned by the PilotJob */
+        int succeeded = 0;
+        int failed = 0;
+
+        /** The total time of the failed jobs returned by the PilotJob */
+        long failedTime = 0;
+
+        /** Set if the PilotJob shares the file system, so jobs are sent as paths */
+        boolean shared = false;
+
+        Worker(IbisIdentifier id) {
+            this.id = id;
+        }
+    }
+
+    /** A job that has been handed out, but for which no result has been accepted yet */
+    static class InFlight {
+        final Job job;
+
+        /** The PilotJobs executing a copy of the job */
+        final ArrayList<Worker> copies = new ArrayList<Worker>(2);
+
+        InFlight(Job job) {
+            this.job = job;
+        }
+    }
+
+    /** Orders jobs as they appear in the input directory listing */
+    static class InOrder implements Comparator<Job> {
+        public int compare(Job a, Job b) {
+            return (a.jobID < b.jobID ? -1 : (a.jobID == b.jobID ? 0 : 1));
+        }
+    }
+
+    /** Orders jobs by decreasing estimated cost (longest processing time first) */
+    static class LargestFirst implements Comparator<Job> {
+        public int compare(Job a, Job b) {
+            if (a.cost != b.cost) { 
+                return (a.cost > b.cost ? -1 : 1);
+            }
+
+            return (a.jobID < b.jobID ? -1 : (a.jobID == b.jobID ? 0 : 1));
+        }
+    }
    
     /** The input directory */
     String inputDir;
@@ -30,8 +174,17 @@ public class JobServer {
     /** The output directory */
     String outputDir;
     
-    /** A list of all jobs */
-    LinkedList<Job> jobs = new LinkedList<Job>();    
+    /** The jobs that have not been handed out yet, in the order they should be handed out */
+    TreeSet<Job> jobs;    
+
+    /** All jobs, by job ID */
+    Job[] all;
+
+    /** 
+     * Set if slow PilotJobs should take jobs from the end of the queue, so the 
+     * expensive jobs at the start of the queue go to the fast PilotJobs. 
+     */
+    boolean matchSpeed;
     
     /** The Ibis to use */
     Ibis ibis;
@@ -39,12 +192,93 @@ public class JobServer {
     /** The ReceivePort for incoming job requests and results. */
     ReceivePort rp;
     
-    /** A HashMap containing the IDs of all known workers and the SendPorts to reach them */
-    HashMap<IbisIdentifier, SendPort> workers = 
-            new HashMap<IbisIdentifier, SendPort>();
+    /** A HashMap containing the IDs of all active workers and their state */
+    HashMap<IbisIdentifier, Worker> workers = 
+            new HashMap<IbisIdentifier, Worker>();
+
+    /** The IDs of all workers that have been sent an empty job */
+    HashSet<IbisIdentifier> done = new HashSet<IbisIdentifier>();
+
+    /** 
+     * The workers that have been sent an empty job, but are still executing 
+     * jobs they prefetched, so their jobs can be recovered if they fail
+     */
+    HashMap<IbisIdentifier, Worker> finishing = new HashMap<IbisIdentifier, Worker>();
+
+    /** If any PilotJob has been sent an empty job because all jobs were handed out */
+    boolean draining = false;
+
+    /** The jobs handed out for which no result has been accepted yet, by job ID */
+    HashMap<Integer, InFlight> inFlight = new HashMap<Integer, InFlight>();
+
+    /** The PilotJobs waiting for an overdue job to copy, or for the run to end */
+    LinkedList<Worker> parked = new LinkedList<Worker>();
+
+    /** 
+     * The factor by which a job must exceed its predicted runtime before a 
+     * copy is started, or 0 if speculative execution is disabled.
+     */
+    double speculate;
+
+    /** The factor by which a job may exceed its predicted runtime before its lease expires */
+    double leaseFactor;
+
+    /** The minimum lease time in milliseconds, or 0 if leases never expire */
+    long minLease;
+
+    /** The last time the leases were checked */
+    long lastLeaseCheck = 0;
+
+    /** The number of times a failed job is retried */
+    int retries;
+
+    /** The failure ratio at which a PilotJob is quarantined, or 0 if disabled */
+    double quarantine;
+
+    /** The number of results needed before a PilotJob can be quarantined */
+    int quarantineMin;
+
+    /** The number of jobs that completed successfully or finally failed */
+    int succeeded = 0;
+    int failed = 0;
+
+    /** The number of successful and failed executions over all PilotJobs */
+    int executions = 0;
+    int executionsFailed = 0;
+
+    /** The PilotJobs that have been quarantined */
+    ArrayList<Worker> quarantined = new ArrayList<Worker>();
 
     /** A job counter */
     int number = 0;
+
+    /** The model predicting job runtimes on each PilotJob */
+    RuntimeModel model = new RuntimeModel();
+
+    /** The policy deciding the number of jobs sent to a PilotJob in a single message */
+    ChunkPolicy chunkPolicy;
+
+    /** 
+     * The requests received from the PilotJobs, waiting to be dispatched. This 
+     * queue is bounded implicitly, as each PilotJob only has a limited number 
+     * of requests outstanding.  
+     */
+    LinkedBlockingQueue<Request> requests = new LinkedBlockingQueue<Request>();
+
+    /** The stage that loads input files */
+    ThreadPoolExecutor loaders;
+
+    /** The stage that sends jobs to the PilotJobs */
+    ThreadPoolExecutor senders;
+
+    /** The write-behind stage that stores output files */
+    WriteBehind writer;
+
+    /** The budget limiting the bytes of input and output files in flight */
+    ByteBudget budget;
+
+    /** The probe sent to check if PilotJobs share the file system, or null if disabled */
+    Probe probe;
     
     /**
      *  Constructor to create a JobServer      
@@ -53,127 +287,1113 @@ public class JobServer {
      * @param arguments command line arguments for the executable.
      * @param inputDir path to a local input directory.
      * @param outputDir path to a local output directory.
+     * @param options the tuning options of the JobServer.
      * @param p properties needed to initialize the IPL.
      * @throws Exception if the IPL failed to initialize.
      */
     JobServer(String executable, String[] arguments, String inputDir,
-            String outputDir, Properties p) throws Exception {  
+            String outputDir, ServerOptions options, Properties p) throws Exception {  
         
         this.inputDir = inputDir; 
         this.outputDir = outputDir;
+
+        // Output files are received in temporary files in the output directory.
+        new File(outputDir).mkdirs();
+        this.speculate = options.speculate;
+        this.leaseFactor = options.leaseFactor;
+        this.minLease = options.minLease * 1000L;
+        this.retries = options.retries;
+        this.quarantine = options.quarantine;
+        this.quarantineMin = options.quarantineMin;
+        this.chunkPolicy = ChunkPolicy.create(options.schedule, 
+                options.batchSize, options.maxBatchSize, model);
         
-        for (String file : FileUtils.listFiles(inputDir, ".jpg")) { 
-            jobs.add(new Job(executable, arguments, file, "out-" + file));
+        CostEstimator estimator = (CostEstimator) Class.forName(options.estimator)
+                .getDeclaredConstructor().newInstance();
+        String[] files = FileUtils.listFiles(inputDir, ".jpg");
+
+        if (options.order.equals("lpt")) { 
+            jobs = new TreeSet<Job>(new LargestFirst());
+            matchSpeed = true;
+        } else if (options.order.equals("fifo")) { 
+            jobs = new TreeSet<Job>(new InOrder());
+        } else {
+            throw new IllegalArgumentException("Unknown order: " + options.order);
         }
+
+        all = new Job[files.length];
+
+        for (int i = 0; i < files.length; i++) { 
+            Job job = new Job(i, executable, arguments, files[i], "out-" + files[i], 
+                    options.stream, options.task);
+            all[i] = job;
+            job.size = new File(inputDir, files[i]).length();
+            job.cost = estimator.estimate(new File(inputDir, files[i]));
+            jobs.add(job);
+        }
+
+        loaders = createStage(options.loaders, options.queueSize);
+        senders = createStage(options.senders, options.queueSize);
+        writer = new WriteBehind(options.writers, options.writeQueue, options.sync);
+        budget = new ByteBudget(options.budget * 1024 * 1024, options.budgetWait * 1000, senders);
         
-        ibis = IbisFactory.createIbis(Shared.ibisCapabilities, p, true, null,
+        if (options.shared) { 
+            probe = Probe.create(inputDir, outputDir);
+        }
+
+        ibis = IbisFactory.createIbis(Shared.ibisCapabilities, p, true, new Membership(),
                 Shared.portTypeServer, Shared.portTypeSlave);
         
         ibis.registry().elect("JobServer");        
+        ibis.registry().enableEvents();
         
         rp = ibis.createReceivePort(Shared.portTypeServer, "receiver");
         rp.enableConnections();
     }
 
+    /**
+     * Creates a pipeline stage consisting of a fixed size thread pool and a 
+     * bounded queue. When the queue is full, the submitting thread runs the 
+     * task itself, which slows down the previous stage.
+     * 
+     * @param threads the number of threads in the stage.
+     * @param capacity the capacity of the queue in front of the stage.
+     * @return the stage.
+     */
+    static ThreadPoolExecutor createStage(int threads, int capacity) {
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, 
+                new ArrayBlockingQueue<Runnable>(capacity), 
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Waits until all tasks submitted to a stage have finished. 
+     * 
+     * @param stage the stage to shut down.
+     */
+    static void shutdown(ThreadPoolExecutor stage) {
+        stage.shutdown();
+
+        try { 
+            while (!stage.awaitTermination(1, TimeUnit.SECONDS)) {
+                // keep waiting
+            }
+        } catch (InterruptedException e) {
+            // ignored
+        }
+    }
+
     /**
      * Retrieves a SendPort for a PilotJob.
      * 
      * If necessary, a new SendPort is created and connected to the 
      * target PilotJob. This SendPort will be cached for later use. 
      * 
-     * @param target the IbisIdentifier of the target PilotJob.
+     * @param worker the target PilotJob.
      * @return a SendPort connected to the target PilotJob.
      * @throws IOException if the connection setup failed. 
      */
-    SendPort getSendPort(IbisIdentifier target) throws IOException {
-        SendPort sp = workers.get(target);
-        
-        if (sp == null) {
-            sp = ibis.createSendPort(Shared.portTypeSlave);
-            sp.connect(target, "receiver");
-            workers.put(target, sp);
+    SendPort getSendPort(Worker worker) throws IOException {
+        synchronized (worker) {
+            if (worker.sp == null) {
+                SendPort sp = ibis.createSendPort(Shared.portTypeSlave);
+                sp.connect(worker.id, "receiver");
+                worker.sp = sp;
+            }
+
+            return worker.sp;
         }
-        
-        return sp;
     }
     
     /**
-     * Closes and removes the SendPort for a PilotJob.
+     * Closes the SendPort for a PilotJob.
      * 
-     * @param target the target PilotJob.
+     * @param worker the target PilotJob.
      */
-    void removeSendPort(IbisIdentifier target) {
-        SendPort sp = workers.remove(target);
+    void removeSendPort(Worker worker) {
+        SendPort sp; 
+
+        synchronized (worker) {
+            sp = worker.sp;
+            worker.sp = null;
+        }
 
         if (sp != null) { 
             try { 
                 sp.close();
             } catch (Exception e) {
-                System.err.println("Failed to close Sendport to " + target + ": " + e);
+                System.err.println("Failed to close Sendport to " + worker.id + ": " + e);
                 e.printStackTrace(System.err);
             }
         }
     }
     
     /**
-     * Send a job to a PilotJob 
+     * Send a batch of jobs to a PilotJob 
      *
-     * @param target the target PilotJob.
-     * @param job the Job to send.
+     * @param worker the target PilotJob.
+     * @param batch the Jobs to send.
+     * @param sharedDir the output directory if the PilotJob shares the file system, or null.
      * @throws IOException if the send has failed. 
      */    
-    void sendReply(IbisIdentifier target, Job job) throws IOException {
-        SendPort sp = getSendPort(target);
-        
-        if (!job.empty) {
-            job.setInput(Shared.read(inputDir + File.separator + job.inputFile));
-        }
+    void sendReply(Worker worker, Job[] batch, String sharedDir) throws IOException {
+        SendPort sp = getSendPort(worker);
 
         WriteMessage wm = sp.newMessage();
-        wm.writeObject(job);
+        Job.writeBatch(wm, batch, sharedDir);
         wm.finish();
 
-        if (job.empty) {
-            removeSendPort(target);
+        if (PilotJob.isLast(batch)) {
+            removeSendPort(worker);
+        }
+    }
+
+    /**
+     * Opens the input files of a batch of jobs, which are streamed to the 
+     * PilotJob when the batch is sent. Jobs whose input cannot be read are 
+     * removed from the batch and reported as failed.
+     * 
+     * @param batch the Jobs to open the input for.
+     * @param failed list to which the failed results are added.
+     * @return the Jobs whose input can be read.
+     */
+    Job[] load(Job[] batch, ArrayList<Result> failed) {
+        ArrayList<Job> loaded = new ArrayList<Job>(batch.length);
+
+        for (Job job : batch) {
+            try { 
+                File input = new File(inputDir, job.inputFile);
+
+                if (!input.isFile() || !input.canRead()) {
+                    throw new FileNotFoundException("Cannot access " + input);
+                }
+
+                job.setInput(input);
+                loaded.add(job);
+            } catch (Exception e) {
+                System.err.println("Failed to load input file: " + job.inputFile);
+                e.printStackTrace(System.err);
+
+                Result result = new Result(e);
+                result.jobID = job.jobID;
+                failed.add(result);
+            }
         }
+
+        return loaded.toArray(new Job[loaded.size()]);
+    }
+
+    /**
+     * Returns the total size of the input files of a batch of jobs.
+     * 
+     * @param batch the Jobs.
+     * @return the number of bytes.
+     */
+    static long inputBytes(Job[] batch) {
+        long bytes = 0;
+
+        for (Job job : batch) {
+            bytes += job.size;
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Returns the total size of the received output files of a number of results.
+     * 
+     * @param results the Results.
+     * @return the number of bytes.
+     */
+    static long outputBytes(Result[] results) {
+        long bytes = 0;
+
+        for (Result result : results) {
+            if (result.output != null) {
+                bytes += result.output.length();
+            }
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Hands a batch of jobs to the input loading stage. Once its input is 
+     * loaded, the batch is passed on to the send stage as soon as its input 
+     * fits in the budget. If the PilotJob shares the file system, only the 
+     * paths of the input files are sent.
+     * 
+     * @param worker the target PilotJob.
+     * @param jobs the Jobs to send.
+     */
+    void dispatch(final Worker worker, final Job[] jobs) {
+        synchronized (worker) {
+            worker.pending++;
+        }
+
+        final String sharedDir = worker.shared ? probe.outputDir : null;
+
+        loaders.execute(new Runnable() {
+            public void run() {
+                ArrayList<Result> failed = new ArrayList<Result>();
+                final Job[] batch = load(jobs, failed);
+
+                if (failed.size() > 0) {
+                    // Report the failed jobs on behalf of the worker. If the 
+                    // entire batch failed, this results in a new batch being 
+                    // dispatched in its place.
+                    Request request = new Request(worker.id, 
+                            failed.toArray(new Result[failed.size()]), batch.length == 0);
+                    request.local = true;
+                    requests.offer(request);
+                }
+
+                if (batch.length == 0) {
+                    jobSent(worker);
+                    return;
+                }
+
+                final long bytes = sharedDir == null ? inputBytes(batch) : 0;
+
+                budget.defer(bytes, new Runnable() {
+                    public void run() {
+                        try {
+                            sendReply(worker, batch, sharedDir);
+                        } catch (Exception e) {
+                            System.err.println("Failed to send jobs to " + worker.id + ": " + e);
+                            e.printStackTrace(System.err);
+
+                            // Return the jobs to the queue and stop using this worker.
+                            requests.offer(new Request(worker.id, batch));
+                        }
+
+                        budget.release(bytes);
+                        jobSent(worker);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Hands a request to cancel a job to the send stage. 
+     * 
+     * @param worker the target PilotJob.
+     * @param jobID the ID of the job to cancel.
+     */
+    void dispatchCancel(final Worker worker, final int jobID) {
+        synchronized (worker) {
+            worker.pending++;
+        }
+
+        senders.execute(new Runnable() {
+            public void run() {
+                try {
+                    WriteMessage wm = getSendPort(worker).newMessage();
+                    new Cancel(jobID).write(wm);
+                    wm.finish();
+                } catch (Exception e) {
+                    System.err.println("Failed to cancel job " + jobID + " on " + worker.id + ": " + e);
+                }
+
+                jobSent(worker);
+            }
+        });
+    }
+
+    /**
+     * Hands a probe for a shared file system to the send stage. 
+     * 
+     * @param worker the target PilotJob.
+     */
+    void dispatchProbe(final Worker worker) {
+        synchronized (worker) {
+            worker.pending++;
+        }
+
+        senders.execute(new Runnable() {
+            public void run() {
+                try {
+                    WriteMessage wm = getSendPort(worker).newMessage();
+                    probe.write(wm);
+                    wm.finish();
+                } catch (Exception e) {
+                    System.err.println("Failed to send probe to " + worker.id + ": " + e);
+                }
+
+                jobSent(worker);
+            }
+        });
+    }
+
+    /**
+     * Records if a PilotJob shares the file system, as reported with its 
+     * results. 
+     * 
+     * @param worker the PilotJob.
+     * @param shared the state reported by the PilotJob.
+     */
+    void share(Worker worker, byte shared) {
+        if (probe == null || shared == Shared.SHARED_UNKNOWN) {
+            return;
+        }
+
+        boolean tmp = (shared == Shared.SHARED_YES);
+
+        if (tmp != worker.shared) {
+            System.out.println((tmp ? "Sending paths" : "Sending files") + " to " + worker.id);
+            worker.shared = tmp;
+        }
+    }
+
+    /**
+     * Sends an empty job to a PilotJob once all pending jobs have been sent, 
+     * thereby telling the PilotJob to stop. 
+     * 
+     * @param worker the target PilotJob.
+     */
+    void dispatchEmpty(Worker worker) {
+        synchronized (worker) {
+            if (worker.pending > 0) {
+                worker.closing = true;
+                return;
+            }
+        }
+
+        sendEmpty(worker);
+    }
+
+    /**
+     * Registers that a pending job has left the pipeline, and sends the empty 
+     * job if it was waiting for this.
+     * 
+     * @param worker the target PilotJob.
+     */
+    void jobSent(Worker worker) {
+        synchronized (worker) {
+            worker.pending--;
+
+            if (worker.pending > 0 || !worker.closing) {
+                return;
+            }
+
+            worker.closing = false;
+        }
+
+        sendEmpty(worker);
+    }
+
+    /**
+     * Hands an empty job to the send stage.  
+     * 
+     * @param worker the target PilotJob.
+     */
+    void sendEmpty(final Worker worker) {
+        senders.execute(new Runnable() {
+            public void run() {
+                try {
+                    sendReply(worker, new Job[] { new Job() }, null);
+                } catch (Exception e) {
+                    System.err.println("Failed to send empty job to " + worker.id + ": " + e);
+                    e.printStackTrace(System.err);
+                    removeSendPort(worker);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns a task that releases the budget used by an output file.
+     * 
+     * @param bytes the size of the output file.
+     * @return the task.
+     */
+    Runnable releaser(final long bytes) {
+        return new Runnable() {
+            public void run() {
+                budget.release(bytes);
+            }
+        };
     }
 
     /** 
-     * Store an output file in the local output directory.
+     * Hands an output file to the write-behind stage, which stores it in 
+     * the local output directory by moving the temporary file it was 
+     * received in. The output of a failed job is deleted.
      * 
      * @param result the Result to process.
      */
     void processResult(Result result) {
-        if (!result.empty && result.status == 0) {
-            try { 
-                Shared.write(outputDir + File.separator + result.outputFile, result.outputBuffer);
-            } catch (Exception e) {
-                System.out.println("Failed to store output file: " + result.outputFile);
-                e.printStackTrace();
+        if (result.empty || result.output == null) {
+            return;
+        }
+
+        Runnable done = releaser(result.output.length());
+
+        if (result.status == 0) {
+            writer.store(result.output, new File(outputDir, result.outputFile), done);
+        } else { 
+            writer.delete(result.output, done);
+        }
+    }
+
+    /** 
+     * Delete the temporary output files of results that were not accepted.
+     * 
+     * @param results the Results to discard.
+     */
+    void discard(Result[] results) {
+        for (Result result : results) {
+            if (result.output != null) { 
+                writer.delete(result.output, releaser(result.output.length()));
             }
         }
     }
 
-    /** Handle an incoming message */
-    void handleRequest() throws IOException, ClassNotFoundException {
-        ReadMessage rm = rp.receive();
-        IbisIdentifier target = rm.origin().ibisIdentifier();
-        Result result = (Result) rm.readObject();
-        rm.finish();
+    /**
+     * Hands the results of a batch to the write-behind stage. 
+     * 
+     * @param results the Results to process.
+     */
+    void persist(Result[] results) {
+        for (Result result : results) {
+            processResult(result);
+        }
+    }
+
+    /** Reports PilotJobs that leave or die to the dispatcher. */
+    class Membership implements RegistryEventHandler {
 
-        System.out.println("Sending job " + number++ + " to " + target);
-        
-        Job job = (jobs.size() > 0 ? jobs.removeFirst() : new Job());
-        
-        sendReply(target, job);
-        processResult(result);
+        public void joined(IbisIdentifier id) {
+            // ignored
+        }
+
+        public void left(IbisIdentifier id) {
+            requests.offer(new Request(id));
+        }
+
+        public void died(IbisIdentifier id) {
+            requests.offer(new Request(id));
+        }
+
+        public void gotSignal(String signal, IbisIdentifier source) {
+            // ignored
+        }
+
+        public void electionResult(String election, IbisIdentifier winner) {
+            // ignored
+        }
+
+        public void poolClosed() {
+            // ignored
+        }
+
+        public void poolTerminated(IbisIdentifier source) {
+            // ignored
+        }
+    }
+
+    /** Receives incoming messages and queues them for the dispatcher. */
+    class Receiver extends Thread {
+
+        Receiver() {
+            setDaemon(true);
+        }
+
+        public void run() {
+            File output = new File(outputDir);
+
+            while (true) {
+                try {
+                    // Stop accepting results while the budget is exhausted.
+                    budget.awaitRoom();
+
+                    ReadMessage rm = rp.receive();
+                    IbisIdentifier source = rm.origin().ibisIdentifier();
+                    Result[] results;
+                    byte shared;
+
+                    try {
+                        byte type = Shared.readHeader(rm);
+
+                        if (type != Shared.MESSAGE_RESULTS) {
+                            throw new IOException("Unexpected message type: " + type);
+                        }
+
+                        shared = rm.readByte();
+                        results = Result.readBatch(rm, output);
+                    } catch (IOException e) {
+                        // Release the port for the next message.
+                        rm.finish(e);
+                        throw e;
+                    }
+
+                    rm.finish();
+
+                    budget.charge(outputBytes(results));
+
+                    Request request = new Request(source, results, true);
+                    request.shared = shared;
+                    requests.put(request);
+                } catch (Exception e) {
+                    System.err.println("Failed to receive message: " + e);
+                    e.printStackTrace(System.err);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes a PilotJob from the PilotJobs executing a copy of a job.
+     * 
+     * @param f the job.
+     * @param id the PilotJob to remove.
+     * @return the removed PilotJob, or null if it was not executing a copy.
+     */
+    Worker removeCopy(InFlight f, IbisIdentifier id) {
+        for (Worker w : f.copies) {
+            if (w.id.equals(id)) {
+                f.copies.remove(w);
+                w.running.remove(f);
+                return w;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Checks if a copy of a job is still running on a PilotJob.
+     * 
+     * @param id the PilotJob.
+     * @param jobID the ID of the job.
+     * @return if the PilotJob runs a copy of the job.
+     */
+    boolean running(IbisIdentifier id, int jobID) {
+        InFlight f = inFlight.get(jobID);
+
+        if (f == null) {
+            return false;
+        }
+
+        for (Worker w : f.copies) {
+            if (w.id.equals(id)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Registers that a job has been handed out to a PilotJob.
+     * 
+     * @param worker the PilotJob.
+     * @param job the Job.
+     */
+    void assign(Worker worker, Job job) {
+        InFlight f = inFlight.get(job.jobID);
+
+        if (f == null) {
+            f = new InFlight(job);
+            inFlight.put(job.jobID, f);
+        }
+
+        if (worker.running.isEmpty()) {
+            worker.lastProgress = System.currentTimeMillis();
+        }
+
+        f.copies.add(worker);
+        worker.running.add(f);
+    }
+
+    /**
+     * Checks if a result should be accepted. A result is rejected if the job 
+     * has already been completed by another PilotJob, or if it failed while 
+     * another copy is still running, or if it failed and can be retried. When 
+     * a result is accepted, all other copies of the job are cancelled.
+     * 
+     * @param source the PilotJob that returned the result.
+     * @param result the Result.
+     * @param retry if the job may be retried when it failed.
+     * @return if the result is accepted.
+     */
+    boolean accept(IbisIdentifier source, Result result, boolean retry) {
+        InFlight f = inFlight.get(result.jobID);
+
+        if (f == null) {
+            // The job may have been returned to the queue after its lease 
+            // expired, in which case this late result is still welcome.
+            if (result.status != 0 || result.jobID < 0 || result.jobID >= all.length 
+                    || !jobs.remove(all[result.jobID])) {
+                return false;
+            }
+
+            model.update(source, result);
+            return true;
+        }
+
+        Worker worker = removeCopy(f, source);
+
+        if (worker != null) {
+            worker.lastProgress = System.currentTimeMillis();
+        }
+
+        if (result.status != 0 && f.copies.size() > 0) {
+            return false;
+        }
+
+        inFlight.remove(result.jobID);
+
+        if (result.status != 0 && retry && f.job.attempts < retries) {
+            System.out.println("Retrying failed job " + result.jobID);
+            f.job.attempts++;
+            jobs.add(f.job);
+            return false;
+        }
+
+        model.update(source, result);
+
+        for (Worker other : f.copies) {
+            other.running.remove(f);
+            System.out.println("Cancelling job " + result.jobID + " on " + other.id);
+            dispatchCancel(other, result.jobID);
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns jobs that could not be delivered to a PilotJob to the queue, 
+     * unless another copy is still running.
+     * 
+     * @param source the PilotJob.
+     * @param lost the Jobs that could not be delivered.
+     */
+    void requeue(IbisIdentifier source, Job[] lost) {
+        for (Job job : lost) {
+            InFlight f = inFlight.get(job.jobID);
+
+            if (f != null) {
+                removeCopy(f, source);
+
+                if (f.copies.size() == 0) {
+                    inFlight.remove(job.jobID);
+                    jobs.add(job);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns all jobs handed out to a PilotJob to the queue, unless another 
+     * copy is still running.
+     * 
+     * @param worker the PilotJob.
+     */
+    void requeueAll(Worker worker) {
+        InFlight[] tmp = worker.running.toArray(new InFlight[worker.running.size()]);
+        Job[] lost = new Job[tmp.length];
+
+        for (int i = 0; i < tmp.length; i++) {
+            lost[i] = tmp[i].job;
+        }
+
+        requeue(worker.id, lost);
+    }
+
+    /**
+     * Returns the lease time of a job on a PilotJob.
+     * 
+     * @param worker the PilotJob.
+     * @param job the Job.
+     * @return the lease time in milliseconds.
+     */
+    long leaseTime(Worker worker, Job job) {
+        return Math.max(minLease, (long) (leaseFactor * model.predict(worker.id, job.size)));
+    }
+
+    /**
+     * Checks the lease of the job each PilotJob is currently executing. If it 
+     * has expired, all jobs handed to the PilotJob are returned to the queue. 
+     * The PilotJob itself is kept, as it may still be alive. 
+     */
+    void expireLeases() {
+        long now = System.currentTimeMillis();
+
+        if (minLease <= 0 || now - lastLeaseCheck < 1000) {
+            return;
+        }
+
+        lastLeaseCheck = now;
+
+        ArrayList<Worker> tmp = new ArrayList<Worker>(workers.values());
+        tmp.addAll(finishing.values());
+
+        for (Worker w : tmp) {
+            if (w.running.isEmpty()) {
+                continue;
+            }
+
+            if (now - w.lastProgress > leaseTime(w, w.running.getFirst().job)) {
+                System.out.println("Lease expired for " + w.running.size() + " jobs on " + w.id);
+                requeueAll(w);
+            }
+        }
+    }
+
+    /** Forgets the finished PilotJobs that no longer execute any jobs. */
+    void pruneFinishing() {
+        Iterator<Worker> it = finishing.values().iterator();
+
+        while (it.hasNext()) {
+            if (it.next().running.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Gives up on the jobs in the queue if no PilotJob is left to execute 
+     * them. This happens when jobs are returned to the queue after the 
+     * queue ran empty and all PilotJobs have been sent an empty job. A 
+     * PilotJob that is quarantined or cannot be reached does not count, as 
+     * other PilotJobs may still be deploying.
+     */
+    void abandonQueue() {
+        if (!draining || jobs.isEmpty() || !workers.isEmpty() || !finishing.isEmpty()) {
+            return;
+        }
+
+        for (Job job : jobs) {
+            System.err.println("Giving up on job " + job.jobID + ": no PilotJobs left to execute it");
+            failed++;
+        }
+
+        jobs.clear();
+    }
+
+    /**
+     * Removes a PilotJob that has left or died, and returns its jobs to the queue. 
+     * 
+     * @param id the PilotJob.
+     */
+    void remove(IbisIdentifier id) {
+        Worker tmp = workers.remove(id);
+
+        if (tmp == null) {
+            // A finished PilotJob may still have been executing jobs.
+            tmp = finishing.remove(id);
+        }
+
+        if (tmp == null) {
+            return;
+        }
+
+        final Worker worker = tmp;
+
+        System.out.println("Lost PilotJob " + id + " with " + worker.running.size() + " jobs");
+
+        requeueAll(worker);
+        parked.remove(worker);
+        done.add(id);
+
+        senders.execute(new Runnable() {
+            public void run() {
+                removeSendPort(worker);
+            }
+        });
+    }
+
+    /**
+     * Registers the outcome of a job on a PilotJob, and quarantines the 
+     * PilotJob if it fails far more often than the other PilotJobs.
+     * 
+     * @param worker the PilotJob, or null if it is no longer active.
+     * @param result the Result of the job.
+     */
+    void record(Worker worker, Result result) {
+        executions++;
+
+        if (result.status != 0) {
+            executionsFailed++;
+        }
+
+        if (worker == null) {
+            return;
+        }
+
+        if (result.status == 0) {
+            worker.succeeded++;
+            return;
+        } 
+
+        worker.failed++;
+        worker.failedTime += result.time;
+
+        int total = worker.succeeded + worker.failed;
+
+        if (quarantine <= 0 || total < quarantineMin 
+                || (double) worker.failed / total < quarantine) {
+            return;
+        }
+
+        // Only quarantine the PilotJob if the others do significantly better. 
+        // Otherwise the jobs themselves are probably at fault.
+        int othersTotal = executions - total;
+        int othersFailed = executionsFailed - worker.failed;
+
+        if (othersTotal == 0 || (double) othersFailed / othersTotal >= quarantine) {
+            return;
+        }
+
+        System.out.println("Quarantining PilotJob " + worker.id + ": " + worker.failed 
+                + " of " + total + " jobs failed, on average after " 
+                + (worker.failedTime / worker.failed) + " ms");
+
+        quarantined.add(worker);
+        parked.remove(worker);
+        requeueAll(worker);
+        finish(worker);
+    }
+
+    /** Prints the PilotJobs that have been quarantined. */
+    void reportQuarantined() {
+        if (quarantined.isEmpty()) {
+            return;
+        }
+
+        System.out.println("Quarantined PilotJobs:");
+
+        for (Worker w : quarantined) {
+            System.out.println("   " + w.id + " (" + w.id.location() + "): " + w.failed 
+                    + " failed, " + w.succeeded + " succeeded");
+        }
+    }
+
+    /**
+     * Finds the job that is most overdue compared to its predicted runtime, 
+     * and is therefore worth executing a second copy of. Only the oldest job 
+     * of each PilotJob is considered, as this is the one it is executing.  
+     * 
+     * @param idle the PilotJob that would execute the copy.
+     * @return the most overdue job, or null if no job is overdue.
+     */
+    InFlight straggler(Worker idle) {
+        long now = System.currentTimeMillis();
+
+        InFlight best = null;
+        double worst = speculate;
+
+        for (Worker w : workers.values()) {
+            if (w == idle || w.running.isEmpty()) {
+                continue;
+            }
+
+            InFlight f = w.running.getFirst();
+
+            if (f.copies.size() > 1) {
+                continue;
+            }
+
+            long predicted = model.predict(w.id, f.job.size);
+
+            if (predicted <= 0) {
+                continue;
+            }
+
+            double ratio = (double) (now - w.lastProgress) / predicted;
+
+            if (ratio > worst) {
+                worst = ratio;
+                best = f;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Tells a PilotJob that there is no more work. 
+     * 
+     * @param worker the PilotJob.
+     */
+    void finish(Worker worker) {
+        done.add(worker.id);
+        workers.remove(worker.id);
+
+        // Keep track of the jobs it still executes until they are returned.
+        if (!worker.running.isEmpty()) {
+            finishing.put(worker.id, worker);
+        }
+
+        System.out.println("Sending empty job to " + worker.id);
+        dispatchEmpty(worker);
+    }
+
+    /**
+     * Hands out work to a PilotJob that requested it. If the job queue is 
+     * empty and speculative execution is enabled, the PilotJob receives a 
+     * copy of an overdue job, or is parked until a job becomes overdue or 
+     * all jobs are done.
+     * 
+     * @param worker the PilotJob.
+     */
+    void serve(Worker worker) {
+        IbisIdentifier target = worker.id;
+
+        if (jobs.size() > 0) { 
+            Job[] batch = new Job[chunkPolicy.chunkSize(target, jobs.size(), workers.size())];
+            boolean slow = matchSpeed && model.speed(target) < 1.0;
+
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = (slow ? jobs.pollLast() : jobs.pollFirst());
+                assign(worker, batch[i]);
+                System.out.println("Sending job " + number++ + " to " + target);
+            }
+
+            dispatch(worker, batch);
+        } else if (speculate > 0 && inFlight.size() > 0) { 
+            InFlight f = straggler(worker);
+
+            if (f == null) {
+                parked.add(worker);
+                return;
+            }
+
+            System.out.println("Sending copy of job " + f.job.jobID + " to " + target);
+            assign(worker, f.job);
+            dispatch(worker, new Job[] { f.job });
+        } else { 
+            draining = true;
+            finish(worker);
+        }
+    }
+
+    /** Serves all parked PilotJobs again, as the situation may have changed. */
+    void serveParked() {
+        if (parked.isEmpty()) {
+            return;
+        }
+
+        Worker[] tmp = parked.toArray(new Worker[parked.size()]);
+        parked.clear();
+
+        for (Worker w : tmp) {
+            serve(w);
+        }
+    }
+
+    /** Handle an incoming request */
+    void handleRequest(Request request) {
+        IbisIdentifier target = request.source;
+
+        if (request.gone) {
+            remove(target);
+            return;
+        }
+
+        if (request.lost != null) {
+            requeue(target, request.lost);
+
+            // Stop the PilotJob, as it may be waiting for these jobs. If it 
+            // cannot be reached either, it is removed once it leaves the pool.
+            Worker worker = workers.get(target);
+
+            if (worker != null) {
+                parked.remove(worker);
+                finish(worker);
+            }
+            return;
+        }
+
+        ArrayList<Result> accepted = new ArrayList<Result>(request.results.length);
+        ArrayList<Result> rejected = new ArrayList<Result>();
+
+        for (Result result : request.results) {
+            if (result.empty) {
+                continue;
+            }
+
+            // Only the result of a copy still running on this PilotJob tells 
+            // something about it. Results of cancelled copies, and late or 
+            // duplicate results, do not.
+            boolean own = !request.local && running(target, result.jobID);
+
+            if (accept(target, result, !request.local)) { 
+                accepted.add(result);
+
+                if (result.status == 0) {
+                    succeeded++;
+                } else { 
+                    failed++;
+                }
+            } else { 
+                rejected.add(result);
+            }
+
+            if (own) { 
+                record(workers.get(target), result);
+            }
+        }
+
+        persist(accepted.toArray(new Result[accepted.size()]));
+        discard(rejected.toArray(new Result[rejected.size()]));
+
+        // A worker that has already been sent an empty job may still return 
+        // the results of jobs it had prefetched. These do not need a reply.
+        if (!request.reply || done.contains(target)) { 
+            return;
+        }
+
+        Worker worker = workers.get(target);
+
+        if (worker == null) {
+            worker = new Worker(target);
+            workers.put(target, worker);
+
+            if (probe != null) { 
+                dispatchProbe(worker);
+            }
+        }
+
+        share(worker, request.shared);
+        serve(worker);
     }
 
     /** Main loop */
     void run() throws Exception {
-        while (jobs.size() > 0 || workers.size() > 0) {
-            handleRequest();
+        new Receiver().start();
+
+        while (jobs.size() > 0 || workers.size() > 0 || inFlight.size() > 0) {
+            // Wake up regularly to check for overdue jobs. 
+            Request request = requests.poll(1, TimeUnit.SECONDS);
+
+            if (request != null) {
+                handleRequest(request);
+            }
+
+            expireLeases();
+            serveParked();
+            pruneFinishing();
+            abandonQueue();
         }
+
+        // Drain the pipeline. The loaders must finish before the senders, 
+        // as they hand their jobs to the senders.
+        shutdown(loaders);
+        shutdown(senders);
+        writer.shutdown();
+
+        if (probe != null) { 
+            probe.delete();
+        }
+
+        System.out.println("Jobs: " + succeeded + " succeeded, " + failed + " failed");
+        reportQuarantined();
+        System.out.println(budget);
+        System.out.println(writer);
+        BufferPool.report();
     }
     
     /** Main method for stand-alone job server (for use in IbisDeploy). */
@@ -182,6 +1402,7 @@ public class JobServer {
         String executable = null;
         String inputdir = null;
         String outputdir = null;
+        ServerOptions options = new ServerOptions();
 
         for (int i = 0; i < args.length; i++) {
             if (args[i].startsWith("--executable")) {
@@ -201,11 +1422,21 @@ public class JobServer {
                 outputdir = args[++i];
 
             } else {
-                System.err.println("Unknown option: " + args[i]);
-                System.exit(1);
+                int next = options.parse(args, i);
+
+                if (next < 0) {
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(1);
+                }
+
+                i = next;
             }
         }
 
+        if (arguments == null && options.task) {
+            arguments = new String[0];
+        }
+
         if (arguments == null || executable == null
                 || inputdir == null || outputdir == null) {
             System.err.println("Missing arguments!");
@@ -213,7 +1444,7 @@ public class JobServer {
         }
 
         JobServer jobServer = new JobServer(executable, arguments, inputdir, 
-                outputdir, new Properties());
+                outputdir, options, new Properties());
 
         jobServer.run();
     }
@@ -2,6 +2,7 @@ package glue;
 
 import ibis.ipl.server.Server;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -42,11 +43,14 @@ public class Main {
      * 
      * @param serverAddress the location of the Ibis Server. 
      * @param javaLocation path to the java executable on the target resource.
+     * @param prefetch the number of jobs each PilotJob keeps queued locally.
+     * @param taskJar path to a jar containing the Java task to run, or null.
      * @return a JodDescription for starting a PilotJob 
      * @throws GATObjectCreationException if creating the JobDescription failed.  
      */
     public static JobDescription prepareJob(String serverAddress,
-            String javaLocation) throws GATObjectCreationException {
+            String javaLocation, int prefetch, String taskJar) 
+            throws GATObjectCreationException {
 
         JavaSoftwareDescription sd = new JavaSoftwareDescription();
 
@@ -60,6 +64,13 @@ public class Main {
         sd.setExecutable(javaLocation);
         sd.setJavaClassPath("ipl/*:glue-examples.jar:.");
         sd.setJavaSystemProperties(properties);
+        if (taskJar != null) { 
+            String name = new File(taskJar).getName();
+            sd.setJavaArguments("--prefetch", Integer.toString(prefetch), "--task-jar", name);
+            sd.addPreStagedFile(GAT.createFile(taskJar));
+        } else { 
+            sd.setJavaArguments("--prefetch", Integer.toString(prefetch));
+        }
         sd.setJavaMain("glue.PilotJob");
 
         // Create files for stdout and stderr
@@ -102,6 +113,9 @@ public class Main {
         String executable = null;
         String inputdir = null;
         String outputdir = null;
+        int prefetch = 1;
+        String taskJar = null;
+        ServerOptions options = new ServerOptions();
 
         for (int i = 0; i < args.length; i++) {
             if (args[i].startsWith("--resource")) {
@@ -123,12 +137,28 @@ public class Main {
             } else if (args[i].startsWith("--output")) {
                 outputdir = args[++i];
 
+            } else if (args[i].startsWith("--prefetch")) {
+                prefetch = Integer.parseInt(args[++i]);
+
+            } else if (args[i].startsWith("--task-jar")) {
+                taskJar = args[++i];
+
             } else {
-                System.err.println("Unknown option: " + args[i]);
-                System.exit(1);
+                int next = options.parse(args, i);
+
+                if (next < 0) {
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(1);
+                }
+
+                i = next;
             }
         }
 
+        if (arguments == null && options.task) {
+            arguments = new String[0];
+        }
+
         if (resources.size() == 0 || arguments == null || executable == null
                 || inputdir == null || outputdir == null) {
             System.err.println("Missing arguments!");
@@ -142,7 +172,7 @@ public class Main {
         p.put("ibis.pool.name", "PILOT");
 
         JobServer jobServer = new JobServer(executable, arguments, inputdir,
-                outputdir, p);
+                outputdir, options, p);
 
         LinkedList<Job> gatJobs = new LinkedList<Job>();
 
@@ -150,7 +180,8 @@ public class Main {
             System.out.println("Deploying to resource: " + resource.brokerURI);
         
             ResourceBroker broker = GAT.createResourceBroker(new URI(resource.brokerURI));
-            Job gatJob = broker.submitJob(prepareJob(reg.getAddress(), resource.javaLocation));            
+            Job gatJob = broker.submitJob(prepareJob(reg.getAddress(), resource.javaLocation, 
+                    prefetch, taskJar));            
             gatJobs.add(gatJob);
         }
 
@@ -1,5 +1,18 @@
 package glue;
 
+import glue.util.BufferPool;
+import glue.util.ProcessExecutor;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
 import ibis.ipl.Ibis;
 import ibis.ipl.IbisFactory;
 import ibis.ipl.IbisIdentifier;
@@ -11,6 +24,70 @@ import ibis.ipl.WriteMessage;
 /** PilotJob which retrieves jobs from the JobServer and executes them. */
 public class PilotJob {
 
+    /**
+     * Thread that receives batches of jobs from the JobServer and stores them 
+     * in the local job queue, so the next job is available as soon as the 
+     * current one finishes. It also handles requests to cancel a job, and 
+     * checks if the file system of the JobServer is shared.
+     */
+    class Prefetcher extends Thread {
+
+        Prefetcher() {
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                Job[] batch = null;
+
+                do {
+                    ReadMessage rm = rp.receive();
+                    byte type = Shared.readHeader(rm);
+
+                    if (type == Shared.MESSAGE_CANCEL) { 
+                        Cancel cancel = Cancel.read(rm);
+                        rm.finish();
+
+                        Job job = running.get(cancel.jobID);
+
+                        if (job != null) {
+                            System.out.println("Cancelling job " + job.jobID);
+                            job.cancel();
+                        }
+                    } else if (type == Shared.MESSAGE_PROBE) { 
+                        Probe probe = Probe.read(rm);
+                        rm.finish();
+
+                        shared = probe.check() ? Shared.SHARED_YES : Shared.SHARED_NO;
+
+                        System.out.println("File system of the JobServer is " 
+                                + (shared == Shared.SHARED_YES ? "" : "not ") + "shared");
+                    } else if (type == Shared.MESSAGE_JOBS) { 
+                        batch = Job.readBatch(rm);
+                        rm.finish();
+
+                        for (Job job : batch) {
+                            if (!job.empty) {
+                                running.put(job.jobID, job);
+                            }
+                        }
+
+                        queue.put(batch);
+                    } else {
+                        throw new IOException("Unexpected message type: " + type);
+                    }
+                } while (batch == null || !isLast(batch));
+
+            } catch (Exception e) {
+                System.err.println("PilotJob failed to receive job: " + e);
+                e.printStackTrace(System.err);
+
+                // Make sure the main loop terminates.
+                queue.offer(new Job[] { new Job() });
+            }
+        }
+    }
+
     /** The ibis used for communication */
     Ibis ibis;
     
@@ -20,12 +97,41 @@ public class PilotJob {
     /** The sendport used to return results and job requests */
     SendPort sp;
 
+    /** The number of job batches to keep queued locally */
+    final int prefetch;
+
+    /** The job batches received from the JobServer that have not been executed yet */
+    final LinkedBlockingQueue<Job[]> queue = new LinkedBlockingQueue<Job[]>();
+
+    /** The jobs received from the JobServer that have not finished yet, by job ID */
+    final ConcurrentHashMap<Integer, Job> running = new ConcurrentHashMap<Integer, Job>();
+
+    /** If this PilotJob shares the file system of the JobServer, reported with every message */
+    volatile byte shared = Shared.SHARED_UNKNOWN;
+
+    /** The class loader used to load Java tasks */
+    final ClassLoader loader;
+
+    /** The Java tasks loaded so far, by class name */
+    final HashMap<String, Task> tasks = new HashMap<String, Task>();
+
     /** 
      * Constructor that creates a PilotJob 
      * 
+     * @param prefetch the number of job batches to keep queued locally (at least 1).
+     * @param taskJar a jar to load Java tasks from, or null to use the classpath only.
      * @throws Exception if Ibis failed to initialize. 
      */
-    PilotJob() throws Exception {
+    PilotJob(int prefetch, String taskJar) throws Exception {
+        this.prefetch = Math.max(1, prefetch);
+
+        if (taskJar != null) { 
+            loader = new URLClassLoader(new URL[] { new File(taskJar).toURI().toURL() }, 
+                    PilotJob.class.getClassLoader());
+        } else { 
+            loader = PilotJob.class.getClassLoader();
+        }
+
         // Create an Ibis
         ibis = IbisFactory.createIbis(Shared.ibisCapabilities, null,
                 Shared.portTypeServer, Shared.portTypeSlave);
@@ -42,40 +148,146 @@ public class PilotJob {
         sp.connect(server, "receiver");
     }
 
+    /**
+     * Checks if a batch ends with an empty job, which indicates that the 
+     * JobServer has no more work for this PilotJob.
+     * 
+     * @param batch the batch to check.
+     * @return if this is the last batch.
+     */
+    static boolean isLast(Job[] batch) {
+        return batch.length == 0 || batch[batch.length - 1].empty;
+    }
+
+    /**
+     * Returns a Java task, loading and creating it the first time it is used.
+     * 
+     * @param name the class name of the task.
+     * @return the task.
+     * @throws Exception if the task could not be loaded or created.
+     */
+    Task task(String name) throws Exception {
+        Task task = tasks.get(name);
+
+        if (task == null) {
+            System.out.println("Loading task " + name);
+
+            try {
+                task = (Task) Class.forName(name, true, loader)
+                        .getDeclaredConstructor().newInstance();
+            } catch (LinkageError e) {
+                // A missing dependency or a failing static initializer 
+                // only fails the jobs of this task.
+                throw new Exception(e.toString(), e);
+            }
+
+            tasks.put(name, task);
+        }
+
+        return task;
+    }
+
+    /**
+     * Execute a job, as a process or as a Java task.
+     * 
+     * @param job the job to execute.
+     * @return the result of the job.
+     */
+    Result execute(Job job) {
+        if (!job.task) { 
+            return job.execute();
+        }
+
+        try {
+            return job.execute(task(job.command[0]));
+        } catch (Exception e) {
+            System.err.println("Failed to load task " + job.command[0] + ": " + e);
+
+            Result result = new Result(e);
+            result.jobID = job.jobID;
+            return result;
+        }
+    }
+
     /** 
-     * Send a result to the JobServer and receive a new Job.
+     * Send the results of a batch to the JobServer. This also serves as a 
+     * request for a new batch of jobs, which is stored in the local job queue 
+     * when it arrives.
      * 
-     * @param previousResult the result to send to the JobServer. 
-     * @return the new Job returned by the JobServer.
+     * @param results the results to send to the JobServer. 
      * @throws Exception if the communication failed. 
      */
-    Job getWork(Result previousResult) throws Exception {
+    void sendResults(Result[] results) throws Exception {
+        for (int i = 0; i < results.length; i++) {
+            results[i] = results[i].checked();
+        }
+
         WriteMessage wm = sp.newMessage();
-        wm.writeObject(previousResult);
+        Result.writeBatch(wm, results, shared);
         wm.finish();
-
-        ReadMessage rm = rp.receive();
-        Job job = (Job) rm.readObject();
-        rm.finish();
-        return job;
     }
 
     /** Main loop */
     void run() throws Exception {
-        Job job = getWork(new Result());
+        new Prefetcher().start();
 
-        while (!job.empty) {
-            Result result = job.execute();
-            job = getWork(result);
+        // Request enough jobs to fill the local queue.
+        for (int i = 0; i < prefetch; i++) {
+            sendResults(new Result[0]);
         }
+
+        Job[] batch;
+
+        do { 
+            batch = queue.take();
+
+            ArrayList<Result> results = new ArrayList<Result>(batch.length);
+
+            for (Job job : batch) {
+                if (!job.empty) { 
+                    Result result = execute(job);
+
+                    // Fall back to sending files if a shared path turns out 
+                    // not to be visible here.
+                    if (job.inputPath != null && result.e instanceof FileNotFoundException) {
+                        shared = Shared.SHARED_NO;
+                    }
+
+                    results.add(result);
+                    running.remove(job.jobID);
+                }
+            }
+
+            if (results.size() > 0) {
+                sendResults(results.toArray(new Result[results.size()]));
+            }
+        } while (!isLast(batch));
     
+        BufferPool.report();
+        System.out.println(ProcessExecutor.common);
         ibis.end();  
     }
 
     /** Main method that creates and starts the PilotJob */
     public static void main(String[] args) {
+        int prefetch = 1;
+        String taskJar = null;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--prefetch")) {
+                prefetch = Integer.parseInt(args[++i]);
+
+            } else if (args[i].startsWith("--task-jar")) {
+                taskJar = args[++i];
+
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(1);
+            }
+        }
+
         try {
-            new PilotJob().run();
+            new PilotJob(prefetch, taskJar).run();
         } catch (Exception e) {
             System.err.println("PilotJob failed: " + e);
             e.printStackTrace(System.err);
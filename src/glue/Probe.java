@@ -0,0 +1,109 @@
+package glue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.UUID;
+
+import ibis.ipl.ReadMessage;
+import ibis.ipl.WriteMessage;
+
+/**
+ * A control message sent by the JobServer to check if a PilotJob shares its
+ * file system. The JobServer writes a probe file with a random token in the
+ * output directory. If the PilotJob can read the token under the same path,
+ * and access the input and output directories, jobs are sent to it as paths
+ * rather than as file content.
+ */
+public class Probe {
+
+    /** The absolute path of the input directory */
+    final String inputDir;
+
+    /** The absolute path of the output directory */
+    final String outputDir;
+
+    /** The name of the probe file in the output directory */
+    final String name;
+
+    /** The content of the probe file */
+    final String token;
+
+    Probe(String inputDir, String outputDir, String name, String token) {
+        this.inputDir = inputDir;
+        this.outputDir = outputDir;
+        this.name = name;
+        this.token = token;
+    }
+
+    /**
+     * Create a probe, and write its probe file.
+     *
+     * @param inputDir the input directory.
+     * @param outputDir the output directory.
+     * @return the probe.
+     * @throws IOException if the probe file could not be written.
+     */
+    static Probe create(String inputDir, String outputDir) throws IOException {
+        String token = UUID.randomUUID().toString();
+
+        Probe probe = new Probe(new File(inputDir).getAbsolutePath(),
+                new File(outputDir).getAbsolutePath(), ".probe-" + token, token);
+
+        Shared.write(probe.file().getPath(), token.getBytes("UTF-8"));
+        return probe;
+    }
+
+    /** @return the probe file. */
+    File file() {
+        return new File(outputDir, name);
+    }
+
+    /** Delete the probe file. */
+    void delete() {
+        file().delete();
+    }
+
+    /**
+     * Checks if the probe file, the input directory and the output directory
+     * are visible under the same paths as on the JobServer.
+     *
+     * @return if the file system is shared.
+     */
+    boolean check() {
+        try {
+            File in = new File(inputDir);
+            File out = new File(outputDir);
+
+            return in.isDirectory() && in.canRead() && out.isDirectory() && out.canWrite()
+                    && Arrays.equals(Shared.read(file().getPath()), token.getBytes("UTF-8"));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Write this control message to a message, including the message header.
+     *
+     * @param wm the message to write to.
+     * @throws IOException if the write failed.
+     */
+    void write(WriteMessage wm) throws IOException {
+        Shared.writeHeader(wm, Shared.MESSAGE_PROBE);
+        wm.writeString(inputDir);
+        wm.writeString(outputDir);
+        wm.writeString(name);
+        wm.writeString(token);
+    }
+
+    /**
+     * Read a control message from a message whose header has already been read.
+     *
+     * @param rm the message to read from.
+     * @return the control message.
+     * @throws IOException if the read failed.
+     */
+    static Probe read(ReadMessage rm) throws IOException {
+        return new Probe(rm.readString(), rm.readString(), rm.readString(), rm.readString());
+    }
+}
@@ -1,15 +1,21 @@
 package glue;
 
-import java.io.Serializable;
+import java.io.File;
+import java.io.IOException;
+
+import glue.util.FileTransfer;
+import ibis.ipl.ReadMessage;
+import ibis.ipl.WriteMessage;
 
 /** 
  * The Result of a Job.  
  *  
  * @author jason
  */
-public class Result implements Serializable {
+public class Result {
 
-    private static final long serialVersionUID = 7331001105371799850L;
+    /** ID of the Job */
+    int jobID;
 
     /** Exit code of the Job */
     int status;
@@ -26,11 +32,26 @@ public class Result implements Serializable {
     /** Time needed to execute the Job. */
     long time;
 
+    /** Size of the input data of the Job. */
+    long inputSize;
+
     /** Name of the output file */
     String outputFile;
 
-    /** Buffer containing the output file */
-    byte[] outputBuffer;
+    /** 
+     * The output file. On the PilotJob this is the file to send, on the 
+     * JobServer the temporary file it was received in. 
+     */
+    File output;
+
+    /** 
+     * The temporary output file in the shared output directory, if the 
+     * output was written in place rather than sent (only used by the PilotJob) 
+     */
+    String outputPath;
+
+    /** The output, if it was read from the standard output of the command (only used by the PilotJob) */
+    byte[] outputData;
         
     /** Flag to indicate that this job is empty */
     final boolean empty;
@@ -48,14 +69,160 @@ public class Result implements Serializable {
     }
 
     /** Constructor to create a regular result */
-    Result(String outputFile, byte[] outputBuffer, byte[] stdout,
+    Result(String outputFile, File output, byte[] stdout,
             byte[] stderr, int status, long time) {
         this.empty = false;
         this.outputFile = outputFile;
-        this.outputBuffer = outputBuffer;
+        this.output = output;
         this.stdout = stdout;
         this.stderr = stderr;
         this.status = status;
         this.time = time;
     }
+
+    /**
+     * Checks if the output file to send still exists, as a missing file would
+     * abort the message and with it the results of the entire batch.
+     *
+     * @return this Result, or a failed Result if the output file is missing.
+     */
+    Result checked() {
+        if (empty || output == null || outputPath != null || outputData != null 
+                || output.isFile()) {
+            return this;
+        }
+
+        Result result = new Result(new IOException("Output file " + outputFile + " has disappeared"));
+        result.jobID = jobID;
+        result.inputSize = inputSize;
+        result.time = time;
+        result.stdout = stdout;
+        result.stderr = stderr;
+        result.outputFile = outputFile;
+        return result;
+    }
+
+    /**
+     * Write a batch of results to a message, including the message header. 
+     * The header is followed by the shared file system state of the PilotJob.
+     * An exception is sent as its description only, and output files are 
+     * streamed into the message, unless they were written in place on a 
+     * shared file system.
+     *
+     * @param wm the message to write to.
+     * @param results the results to write.
+     * @param shared the shared file system state of the PilotJob.
+     * @throws IOException if the write failed.
+     */
+    static void writeBatch(WriteMessage wm, Result[] results, byte shared) throws IOException {
+        Shared.writeHeader(wm, Shared.MESSAGE_RESULTS);
+        wm.writeByte(shared);
+        wm.writeInt(results.length);
+
+        for (Result result : results) {
+            wm.writeBoolean(result.empty);
+
+            if (!result.empty) {
+                wm.writeInt(result.jobID);
+                wm.writeInt(result.status);
+                wm.writeLong(result.time);
+                wm.writeLong(result.inputSize);
+                Shared.writeString(wm, result.e == null ? null : result.e.toString());
+                Shared.writeString(wm, result.outputFile);
+                Shared.writeBytes(wm, result.stdout);
+                Shared.writeBytes(wm, result.stderr);
+                Shared.writeString(wm, result.outputPath);
+
+                if (result.outputData != null) {
+                    FileTransfer.send(wm, result.outputData);
+                } else if (result.outputPath == null) {
+                    FileTransfer.send(wm, result.output);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks an output file written in place on a shared file system. Only 
+     * temporary files in the output directory are accepted, so a PilotJob 
+     * cannot make the JobServer move other files.
+     *
+     * @param path the path of the output file.
+     * @param dir the output directory.
+     * @return the output file, or null if it is not accepted.
+     */
+    static File inPlace(String path, File dir) {
+        try {
+            File file = new File(path).getCanonicalFile();
+
+            if (file.getName().startsWith(".") && file.getName().endsWith(".part") 
+                    && dir.getCanonicalFile().equals(file.getParentFile())) {
+                return file;
+            }
+        } catch (IOException e) {
+            // not accepted
+        }
+
+        return null;
+    }
+
+    /**
+     * Read a batch of results from a message whose header, and the shared 
+     * file system state of the PilotJob that follows it, have already been read.
+     * Output files are stored in temporary files as they arrive, or accepted 
+     * in place if they were written on a shared file system.
+     *
+     * @param rm the message to read from.
+     * @param dir the directory to store the output files in.
+     * @return the results.
+     * @throws IOException if the read failed.
+     */
+    static Result[] readBatch(ReadMessage rm, File dir) throws IOException {
+        Result[] results = new Result[rm.readInt()];
+
+        for (int i = 0; i < results.length; i++) {
+            if (rm.readBoolean()) {
+                results[i] = new Result();
+                continue;
+            }
+
+            int jobID = rm.readInt();
+            int status = rm.readInt();
+            long time = rm.readLong();
+            long inputSize = rm.readLong();
+            String error = Shared.readString(rm);
+            String outputFile = Shared.readString(rm);
+            byte[] stdout = Shared.readBytes(rm);
+            byte[] stderr = Shared.readBytes(rm);
+            String outputPath = Shared.readString(rm);
+            File output = null;
+
+            if (outputPath == null) {
+                output = FileTransfer.receiveTemporary(rm, dir, "." + outputFile + ".");
+            } else {
+                output = inPlace(outputPath, dir);
+
+                if (output == null) { 
+                    status = 1;
+                    error = "Output written outside the output directory: " + outputPath;
+                } else if (!output.isFile()) { 
+                    output = null;
+                    status = 1;
+                    error = "Output file not found: " + outputPath;
+                }
+            }
+
+            Result result = new Result(outputFile, output, stdout, stderr, status, time);
+            result.jobID = jobID;
+            result.inputSize = inputSize;
+
+            if (error != null) {
+                result.e = new Exception(error);
+            }
+
+            results[i] = result;
+        }
+
+        return results;
+    }
 }
@@ -0,0 +1,151 @@
+package glue;
+
+import java.util.HashMap;
+
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.Location;
+
+/**
+ * An online model that predicts the runtime of a job from the size of its
+ * input. For each PilotJob, each site, and for the run as a whole, it keeps an
+ * exponentially weighted average of the time needed per input byte. Every
+ * estimate uses a fixed amount of memory, and is updated with each Result.
+ */
+public class RuntimeModel {
+
+    /** Weight of a new sample in the moving average */
+    static final double ALPHA = 0.2;
+
+    /** A moving average of the time per input byte */
+    static class Estimate {
+
+        /** Number of samples seen */
+        int samples = 0;
+
+        /** Average time per input byte (in milliseconds) */
+        double rate = 0.0;
+
+        void update(double sample) {
+            if (samples == 0) {
+                rate = sample;
+            } else {
+                rate = ALPHA * sample + (1.0 - ALPHA) * rate;
+            }
+
+            samples++;
+        }
+    }
+
+    /** The estimates of all PilotJobs */
+    HashMap<IbisIdentifier, Estimate> workers = new HashMap<IbisIdentifier, Estimate>();
+
+    /** The estimates of all sites */
+    HashMap<Location, Estimate> sites = new HashMap<Location, Estimate>();
+
+    /** The estimate over all PilotJobs */
+    Estimate global = new Estimate();
+
+    /**
+     * Returns the site a PilotJob runs on, that is, its location without the
+     * host name.
+     *
+     * @param worker the PilotJob.
+     * @return the site of the PilotJob.
+     */
+    static Location site(IbisIdentifier worker) {
+        Location location = worker.location();
+
+        if (location.numberOfLevels() > 1) {
+            return location.getParent();
+        }
+
+        return location;
+    }
+
+    /**
+     * Retrieves an estimate from a map, adding it if needed.
+     *
+     * @param map the map to retrieve the estimate from.
+     * @param key the key of the estimate.
+     * @return the estimate.
+     */
+    static <K> Estimate get(HashMap<K, Estimate> map, K key) {
+        Estimate e = map.get(key);
+
+        if (e == null) {
+            e = new Estimate();
+            map.put(key, e);
+        }
+
+        return e;
+    }
+
+    /**
+     * Updates the model with the result of a job.
+     *
+     * @param worker the PilotJob that executed the job.
+     * @param result the Result of the job.
+     */
+    void update(IbisIdentifier worker, Result result) {
+        if (result.empty || result.status != 0 || result.time <= 0 || result.inputSize <= 0) {
+            return;
+        }
+
+        double sample = (double) result.time / result.inputSize;
+
+        get(workers, worker).update(sample);
+        get(sites, site(worker)).update(sample);
+        global.update(sample);
+    }
+
+    /**
+     * Returns the time per input byte of a PilotJob. If the PilotJob has not
+     * returned any results yet, the estimate of its site is used instead, or
+     * the overall estimate if its site is unknown.
+     *
+     * @param worker the PilotJob.
+     * @return the estimated time per input byte, or 0 if no estimate exists.
+     */
+    double rate(IbisIdentifier worker) {
+        Estimate e = workers.get(worker);
+
+        if (e == null) {
+            e = sites.get(site(worker));
+        }
+
+        if (e == null) {
+            e = global;
+        }
+
+        return e.rate;
+    }
+
+    /**
+     * Predicts the runtime of a job on a PilotJob.
+     *
+     * @param worker the PilotJob.
+     * @param inputSize the size of the input file of the job.
+     * @return the predicted runtime in milliseconds, or 0 if unknown.
+     */
+    long predict(IbisIdentifier worker, long inputSize) {
+        return (long) (rate(worker) * inputSize);
+    }
+
+    /**
+     * Returns the relative speed of a PilotJob, that is, the overall time per
+     * byte divided by the time per byte of the PilotJob. PilotJobs without
+     * estimate are assumed to have average speed.
+     *
+     * @param worker the PilotJob.
+     * @return the relative speed of the PilotJob.
+     */
+    double speed(IbisIdentifier worker) {
+        double rate = rate(worker);
+
+        if (rate <= 0.0 || global.rate <= 0.0) {
+            return 1.0;
+        }
+
+        return global.rate / rate;
+    }
+}
@@ -0,0 +1,167 @@
+package glue;
+
+/**
+ * The tuning options of a JobServer. All options have sensible defaults, and
+ * can be changed using command line arguments.
+ */
+public class ServerOptions {
+
+    /** The policy used to decide the number of jobs sent in a single message */
+    String schedule = "fixed";
+
+    /** Number of jobs sent in a single message (the minimum for adaptive schedules) */
+    int batchSize = 1;
+
+    /** Maximum number of jobs sent in a single message by adaptive schedules */
+    int maxBatchSize = 32;
+
+    /** The order in which jobs are handed out: fifo or lpt (largest first) */
+    String order = "fifo";
+
+    /** The class used to estimate the cost of a job */
+    String estimator = FileSizeEstimator.class.getName();
+
+    /** 
+     * Factor by which a job must exceed its predicted runtime before a copy is 
+     * started on an idle PilotJob at the end of the run (0 disables this) 
+     */
+    double speculate = 0.0;
+
+    /** Factor by which a job may exceed its predicted runtime before its lease expires */
+    double leaseFactor = 4.0;
+
+    /** Minimum lease time of a job in seconds (0 disables lease expiry) */
+    long minLease = 300;
+
+    /** Number of times a failed job is retried */
+    int retries = 2;
+
+    /** Failure ratio at which a PilotJob is quarantined (0 disables quarantine) */
+    double quarantine = 0.5;
+
+    /** Number of results needed before a PilotJob can be quarantined */
+    int quarantineMin = 5;
+
+    /** Number of threads loading input files */
+    int loaders = 2;
+
+    /** Number of threads sending jobs to PilotJobs */
+    int senders = 4;
+
+    /** Number of threads writing output files */
+    int writers = 2;
+
+    /** Capacity of the queue in front of each stage */
+    int queueSize = 64;
+
+    /** 
+     * Set if PilotJobs that share the file system of the JobServer receive 
+     * the paths of the input files rather than their content 
+     */
+    boolean shared = false;
+
+    /** 
+     * Set if the executable reads its input from stdin and writes its output 
+     * to stdout (for example "convert - ... -"), instead of using files
+     */
+    boolean stream = false;
+
+    /** 
+     * Set if the executable is the class name of a Java {@link Task}, which 
+     * the PilotJobs run in their own JVM (the arguments are not used)
+     */
+    boolean task = false;
+
+    /** Number of output files that may wait to be stored */
+    int writeQueue = 1024;
+
+    /** Interval in milliseconds at which stored output files are forced to disk (0 disables this) */
+    long sync = 0;
+
+    /** Number of megabytes of input and output data that may be in flight (0 disables the limit) */
+    long budget = 256;
+
+    /** Number of seconds a large job may wait for budget before smaller jobs can no longer overtake it */
+    long budgetWait = 10;
+
+    /**
+     * Parse a single command line option.
+     *
+     * @param args the command line arguments.
+     * @param i the position of the option to parse.
+     * @return the position of the last argument consumed, or -1 if the option is unknown.
+     */
+    int parse(String[] args, int i) {
+        if (args[i].startsWith("--schedule")) {
+            schedule = args[++i];
+
+        } else if (args[i].startsWith("--batch")) {
+            batchSize = Integer.parseInt(args[++i]);
+
+        } else if (args[i].startsWith("--max-batch")) {
+            maxBatchSize = Integer.parseInt(args[++i]);
+
+        } else if (args[i].startsWith("--order")) {
+            order = args[++i];
+
+        } else if (args[i].startsWith("--estimator")) {
+            estimator = args[++i];
+
+        } else if (args[i].startsWith("--speculate")) {
+            speculate = Double.parseDouble(args[++i]);
+
+        } else if (args[i].startsWith("--lease-factor")) {
+            leaseFactor = Double.parseDouble(args[++i]);
+
+        } else if (args[i].startsWith("--lease")) {
+            minLease = Long.parseLong(args[++i]);
+
+        } else if (args[i].startsWith("--retries")) {
+            retries = Integer.parseInt(args[++i]);
+
+        } else if (args[i].startsWith("--quarantine-min")) {
+            quarantineMin = Integer.parseInt(args[++i]);
+
+        } else if (args[i].startsWith("--quarantine")) {
+            quarantine = Double.parseDouble(args[++i]);
+
+        } else if (args[i].startsWith("--loaders")) {
+            loaders = Integer.parseInt(args[++i]);
+
+        } else if (args[i].startsWith("--senders")) {
+            senders = Integer.parseInt(args[++i]);
+
+        } else if (args[i].startsWith("--writers")) {
+            writers = Integer.parseInt(args[++i]);
+
+        } else if (args[i].equals("--stream")) {
+            stream = true;
+
+        } else if (args[i].equals("--task")) {
+            task = true;
+
+        } else if (args[i].equals("--shared")) {
+            shared = true;
+
+        } else if (args[i].startsWith("--write-queue")) {
+            writeQueue = Integer.parseInt(args[++i]);
+
+        } else if (args[i].startsWith("--sync")) {
+            sync = Long.parseLong(args[++i]);
+
+        } else if (args[i].startsWith("--queue")) {
+            queueSize = Integer.parseInt(args[++i]);
+
+        } else if (args[i].startsWith("--budget-wait")) {
+            budgetWait = Long.parseLong(args[++i]);
+
+        } else if (args[i].startsWith("--budget")) {
+            budget = Long.parseLong(args[++i]);
+
+        } else {
+            return -1;
+        }
+
+        return i;
+    }
+}
@@ -1,15 +1,15 @@
 package glue;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 
 
+import glue.util.FileUtils;
 import glue.util.Filter;
 import ibis.ipl.IbisCapabilities;
 import ibis.ipl.PortType;
+import ibis.ipl.ReadMessage;
+import ibis.ipl.WriteMessage;
 
 /** 
  * Class containing various utility functions and constants.
@@ -18,57 +18,111 @@ import ibis.ipl.PortType;
  */
 public class Shared {
 
+    /** 
+     * Version of the wire format. Each message starts with this version and 
+     * the message type, and is written field by field using data serialization. 
+     */
+    public static final byte WIRE_VERSION = 4;
+
+    /** Message type of a batch of jobs, sent to a PilotJob */
+    public static final byte MESSAGE_JOBS = 1;
+
+    /** Message type of a request to abort a job, sent to a PilotJob */
+    public static final byte MESSAGE_CANCEL = 2;
+
+    /** Message type of a batch of results, sent to the JobServer */
+    public static final byte MESSAGE_RESULTS = 3;
+
+    /** Message type of a check for a shared file system, sent to a PilotJob */
+    public static final byte MESSAGE_PROBE = 4;
+
+    /** The PilotJob has not checked if it shares the file system of the JobServer */
+    public static final byte SHARED_UNKNOWN = 0;
+
+    /** The PilotJob does not share the file system of the JobServer */
+    public static final byte SHARED_NO = 1;
+
+    /** The PilotJob shares the file system of the JobServer */
+    public static final byte SHARED_YES = 2;
+
     /** PortType used in communication to PilotJobs */
     public static final PortType portTypeSlave = new PortType(
-            PortType.COMMUNICATION_RELIABLE, PortType.SERIALIZATION_OBJECT,
+            PortType.COMMUNICATION_RELIABLE, PortType.SERIALIZATION_DATA,
             PortType.RECEIVE_EXPLICIT, PortType.CONNECTION_ONE_TO_ONE);
 
     /** PortType used in communication to JobServer */
     public static final PortType portTypeServer = new PortType(
-            PortType.COMMUNICATION_RELIABLE, PortType.SERIALIZATION_OBJECT,
+            PortType.COMMUNICATION_RELIABLE, PortType.SERIALIZATION_DATA,
             PortType.RECEIVE_EXPLICIT, PortType.CONNECTION_MANY_TO_ONE);
 
     /** IbisCapabilities needed for both JobsServer and PilotJobs */
     public static final IbisCapabilities ibisCapabilities = new IbisCapabilities(
-            IbisCapabilities.ELECTIONS_STRICT);
+            IbisCapabilities.ELECTIONS_STRICT, IbisCapabilities.MEMBERSHIP_TOTALLY_ORDERED);
 
     /** Read a file input a byte array */
     public static byte[] read(String file) throws IOException {
+        return FileUtils.read(file);
+    }
+
+    /** Write a byte array to a file. Also created directory if needed */
+    public static void write(String fileName, byte[] data) throws IOException {
+        File file = new File(fileName);
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        FileUtils.write(fileName, data);
+    }
 
-        File tmp = new File(file);
+    /** Read a string that may be null from a message */
+    public static String readString(ReadMessage rm) throws IOException {
+        return rm.readBoolean() ? rm.readString() : null;
+    }
 
-        if (tmp.exists() && tmp.canRead() && tmp.isFile()) {
+    /** Write a string that may be null to a message */
+    public static void writeString(WriteMessage wm, String s) throws IOException {
+        wm.writeBoolean(s != null);
 
-            byte[] buffer = new byte[(int) tmp.length()];
+        if (s != null) {
+            wm.writeString(s);
+        }
+    }
 
-            FileInputStream f = new FileInputStream(tmp);
+    /** Read a byte array that may be null from a message */
+    public static byte[] readBytes(ReadMessage rm) throws IOException {
+        int length = rm.readInt();
 
-            int offset = 0;
-            int read = 0;
+        if (length < 0) {
+            return null;
+        }
 
-            while (offset < buffer.length) {
-                read = f.read(buffer, offset, buffer.length - offset);
+        byte[] data = new byte[length];
+        rm.readArray(data);
+        return data;
+    }
 
-                if (read == -1) {
-                    throw new FileNotFoundException("Cannot read " + file);
-                }
+    /** Write a byte array that may be null to a message, preceded by its length (-1 for null) */
+    public static void writeBytes(WriteMessage wm, byte[] data) throws IOException {
+        if (data == null) {
+            wm.writeInt(-1);
+        } else {
+            wm.writeInt(data.length);
+            wm.writeArray(data);
+        }
+    }
 
-                offset += read;
-            }
+    /** Read the header of a message, check its version, and return its type */
+    public static byte readHeader(ReadMessage rm) throws IOException {
+        byte version = rm.readByte();
 
-            return buffer;
+        if (version != WIRE_VERSION) {
+            throw new IOException("Unsupported message version: " + version);
         }
 
-        throw new FileNotFoundException("Cannot access " + file);
+        return rm.readByte();
     }
 
-    /** Write a byte array to a file. Also created directory if needed */
-    public static void write(String fileName, byte[] data) throws IOException {
-        File file = new File(fileName);
-        file.getAbsoluteFile().getParentFile().mkdirs();
-        FileOutputStream out = new FileOutputStream(file);
-        out.write(data);
-        out.close();
+    /** Write the header of a message of the given type */
+    public static void writeHeader(WriteMessage wm, byte type) throws IOException {
+        wm.writeByte(WIRE_VERSION);
+        wm.writeByte(type);
     }
 
     /** List all files in a directory with a specific extention. */
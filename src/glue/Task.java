@@ -0,0 +1,26 @@
+package glue;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A job implemented in Java, which the PilotJob runs in its own JVM instead 
+ * of starting a process. A task is selected with the --task option of the 
+ * JobServer, which then interprets the executable as the name of a class 
+ * implementing this interface. The class is loaded from the classpath of the 
+ * PilotJob (which includes glue-examples.jar) or from a jar staged with 
+ * --task-jar, and must have a public constructor without parameters.
+ * 
+ * Each PilotJob creates a single instance of a task and uses it for all 
+ * jobs, so any state kept by the task must be safe to share between them.
+ */
+public interface Task {
+
+    /**
+     * Process the input of a job.
+     * 
+     * @param in the input file, from its position to its limit.
+     * @return the output file, from its position to its limit.
+     * @throws Exception if the job failed.
+     */
+    ByteBuffer process(ByteBuffer in) throws Exception;
+}
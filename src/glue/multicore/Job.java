@@ -1,10 +1,19 @@
 package glue.multicore;
 
-import ibis.util.RunProcess;
+import glue.util.CoProcess;
+import glue.util.FileTransfer;
+import glue.util.ProcessExecutor;
+import glue.util.ProcessExecutor.Execution;
+import glue.util.ProcessExecutor.Redirect;
 
-import java.io.Serializable;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 
+import ibis.ipl.ReadMessage;
+import ibis.ipl.WriteMessage;
+
 /**
  * This object represents a Job. It consists of a command array containing the command to
  * execute (typically a executable plus its parameters), a byte array containing the input 
@@ -12,15 +21,16 @@ import java.util.Arrays;
  * 
  * @author jason
  */
-public class Job implements Serializable {
-
-    private static final long serialVersionUID = 4957475242030816948L;
+public class Job {
 
     /** The job ID */
     int jobID;
     
     /** The script to execute */
     String script;
+
+    /** The content hash of the script, used to cache it on the PilotJob */
+    String scriptHash;
     
     /** The name of the input file */
     String inputFile;
@@ -31,8 +41,8 @@ public class Job implements Serializable {
     /** The script to run */
     byte[] scriptBuffer;
     
-    /** The input data */
-    byte[] inputBuffer;
+    /** The input file on the JobServer, which is streamed to the PilotJob when the job is sent */
+    File input;
 
     /** A flag to indicate that this job is empty */
     boolean empty;
@@ -45,28 +55,159 @@ public class Job implements Serializable {
     /**
      * Constructor to create a regular job. 
      *      
-     * @param executable path to the executable (assumed to be available on target resource).
-     * @param arguments command line arguments for executable
+     * @param ID the job ID.
+     * @param script path to the script (on local machine).
+     * @param scriptHash the content hash of the script. 
      * @param input path to input file (on local machine) 
      * @param output path to output file (on local machine)
      */
-    Job(int ID, String script, String input, String output) {
+    Job(int ID, String script, String scriptHash, String input, String output) {
         empty = false;
         
         this.jobID = ID;
         this.script = script;
+        this.scriptHash = scriptHash;
         this.inputFile = input;
         this.outputFile = output;
     }
 
     /**
-     * Set the input data array of the job. 
+     * Set the script and input file of the job. 
      *
-     * @param inputBuffer the input data
+     * @param scriptBuffer the script, or null if the PilotJob has already cached it. 
+     * @param input the input file on the JobServer.
      */
-    public void setData(byte [] scriptBuffer, byte[] inputBuffer) {
+    public void setData(byte [] scriptBuffer, File input) {
         this.scriptBuffer = scriptBuffer;
-        this.inputBuffer = inputBuffer;
+        this.input = input;
+    }
+
+    /**
+     * Write a batch of jobs to a message, including the message header. The
+     * path of the script on the JobServer is not sent, and the input files 
+     * are streamed into the message.
+     *
+     * @param wm the message to write to.
+     * @param batch the jobs to write.
+     * @throws IOException if the write failed.
+     */
+    static void writeBatch(WriteMessage wm, Job[] batch) throws IOException {
+        Shared.writeHeader(wm, Shared.MESSAGE_JOBS);
+        wm.writeInt(batch.length);
+
+        for (Job job : batch) {
+            wm.writeBoolean(job.empty);
+
+            if (!job.empty) {
+                wm.writeInt(job.jobID);
+                wm.writeString(job.scriptHash);
+                wm.writeString(job.inputFile);
+                wm.writeString(job.outputFile);
+                Shared.writeBytes(wm, job.scriptBuffer);
+                FileTransfer.send(wm, job.input);
+            }
+        }
+    }
+
+    /**
+     * Read a batch of jobs from a message whose header has already been read.
+     * The input files are stored in the working directory as they arrive.
+     *
+     * @param rm the message to read from.
+     * @return the jobs.
+     * @throws IOException if the read failed.
+     */
+    static Job[] readBatch(ReadMessage rm) throws IOException {
+        Job[] batch = new Job[rm.readInt()];
+
+        for (int i = 0; i < batch.length; i++) {
+            Job job = new Job();
+            job.empty = rm.readBoolean();
+
+            if (!job.empty) {
+                job.jobID = rm.readInt();
+                job.scriptHash = rm.readString();
+                job.inputFile = rm.readString();
+                job.outputFile = rm.readString();
+                job.scriptBuffer = Shared.readBytes(rm);
+                FileTransfer.receive(rm, new File(job.inputFile));
+            }
+
+            batch[i] = job;
+        }
+
+        return batch;
+    }
+
+    /** 
+     * Returns the name of the script on disk. The script is stored under its 
+     * content hash, so it only needs to be written (and sent) once.
+     */
+    String scriptName() {
+        return "script-" + scriptHash + ".sh";
+    }
+
+    /**
+     * Store the script on disk (if this job carries it) and release the 
+     * memory buffer. 
+     *
+     * @throws IOException if the script is not carried and not on disk, or could not be written.
+     */
+    void cacheScript() throws IOException {
+        Shared.cache(scriptName(), scriptBuffer);
+        scriptBuffer = null;
+    }
+
+    /**
+     * Execute the job on a persistent worker running its script, and return 
+     * the result. The worker is sent a line with the input and output file, 
+     * separated by a tab, so file names may contain spaces. Names containing 
+     * a tab or newline cannot be passed, and fail the job.
+     * 
+     * @param worker the worker.
+     * @return the result.
+     */
+    public Result execute(CoProcess worker) {
+
+        try {
+            long start = System.currentTimeMillis();
+
+            // Store the script on disk and release the memory buffer.
+            cacheScript();
+
+            System.out.println("Executing Job " + jobID + " on worker: " + inputFile + " " + outputFile);
+
+            if (inputFile.matches(".*[\\t\\n\\r].*") || outputFile.matches(".*[\\t\\n\\r].*")) {
+                throw new IOException("Cannot pass file names with tabs or newlines to a worker: " 
+                        + inputFile + " " + outputFile);
+            }
+
+            StringBuilder log = new StringBuilder();
+            int status = worker.call(inputFile + "\t" + outputFile, log);
+
+            byte[] stdout = log.toString().getBytes();
+            File output = null;
+
+            // The output file is streamed to the JobServer with the result.
+            if (status == 0) {
+                output = new File(outputFile);
+
+                if (!output.isFile()) {
+                    throw new IOException("Output file " + outputFile + " was not produced");
+                }
+            } else {
+                System.err.println("Error on running job");
+                System.err.write(stdout);
+            }
+
+            long time = System.currentTimeMillis() - start;
+
+            return new Result(outputFile, output, stdout, new byte[0], status, time);
+        } catch (Exception e) {
+            System.err.println("Error on running job");
+            e.printStackTrace(System.err);
+            return new Result(e);
+        }
     }
 
     /** Execute the job and return the result */
@@ -75,33 +216,40 @@ public class Job implements Serializable {
         try {
             long start = System.currentTimeMillis();
 
-            // Generate a unique script name
-            String scriptName = "script-" + jobID + ".sh";
+            String scriptName = scriptName();
 
-            // Store the script and input data on disk and release the memory buffer.
-            Shared.write(scriptName, scriptBuffer);
-            Shared.write(inputFile, inputBuffer);
-            scriptBuffer = null;
-            inputBuffer = null;
+            // Store the script on disk and release the memory buffer.
+            cacheScript();
             
             // Generate the command to execute.
             String [] command = new String [] { "/bin/sh", scriptName, inputFile, outputFile };
 
             System.out.println("Executing Job: " + Arrays.toString(command));
             
-            // Execute the command.
-            RunProcess p = new RunProcess(command);
-            p.run();
+            // Execute the command, without starting threads for its output.
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+            Execution p = ProcessExecutor.common.execute(jobID, null, command, null, 
+                    Redirect.to(out), Redirect.to(err), 0, null);
+
+            if (p.failure() != null) {
+                throw p.failure();
+            }
 
             // Extract the exit code, stdout, and stderr. 
-            int status = p.getExitStatus();
-            byte[] stderr = p.getStderr();
-            byte[] stdout = p.getStdout();
-            byte[] outputBuffer = null;
+            int status = p.waitFor();
+            byte[] stderr = err.toByteArray();
+            byte[] stdout = out.toByteArray();
+            File output = null;
 
-            // Read the output file.
+            // The output file is streamed to the JobServer with the result.
             if (status == 0) {
-                outputBuffer = Shared.read(outputFile);
+                output = new File(outputFile);
+
+                if (!output.isFile()) {
+                    throw new IOException("Output file " + outputFile + " was not produced");
+                }
             } else {
                 System.err.println("Error on running job");
                 System.err.write(stdout);
@@ -110,7 +258,7 @@ public class Job implements Serializable {
 
             long time = System.currentTimeMillis() - start;
 
-            return new Result(outputFile, outputBuffer, stdout, stderr, status, time);
+            return new Result(outputFile, output, stdout, stderr, status, time);
         } catch (Exception e) {
             System.err.println("Error on running job");
             e.printStackTrace(System.err);
@@ -2,33 +2,93 @@ package glue.multicore;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import glue.util.BufferPool;
+import glue.util.ByteBudget;
+import glue.util.WriteBehind;
 import ibis.ipl.Ibis;
 import ibis.ipl.IbisFactory;
 import ibis.ipl.IbisIdentifier;
+import ibis.ipl.MessageUpcall;
 import ibis.ipl.ReadMessage;
 import ibis.ipl.ReceivePort;
 import ibis.ipl.SendPort;
 import ibis.ipl.WriteMessage;
 
 /** 
- * A JobServer that hands out Job objects to running PilotJobs.
+ * A JobServer that hands out batches of Job objects to running PilotJobs.
+ * 
+ * Requests are handled in message upcalls. Each upcall finishes its message
+ * before handling it, so Ibis can deliver requests of other PilotJobs in 
+ * parallel. All shared state is therefore kept in thread-safe collections, 
+ * and the requests of a single PilotJob are serialized on its Worker.  
+ * 
+ * The number of bytes of input files being sent is limited by a budget. A 
+ * request whose batch does not fit waits, while the requests of other 
+ * PilotJobs for smaller batches may still be served.
  * 
  * @author jason
  */
 public class JobServer {
+
+    /** The state of a PilotJob */
+    static class Worker { 
+
+        /** The IbisIdentifier of the PilotJob */
+        final IbisIdentifier id;
+
+        /** The SendPort connected to the PilotJob, or null if not connected */
+        SendPort sp;
+
+        /** The content hashes of the scripts the PilotJob has already received */
+        HashSet<String> cached = new HashSet<String>();
+
+        Worker(IbisIdentifier id) {
+            this.id = id;
+        }
+    }
+
+    /** Upcall handler that receives requests from the PilotJobs. */
+    class Handler implements MessageUpcall {
+
+        public void upcall(ReadMessage rm) throws IOException {
+            IbisIdentifier target = rm.origin().ibisIdentifier();
+            byte type = Shared.readHeader(rm);
+
+            if (type != Shared.MESSAGE_REQUEST) {
+                throw new IOException("Unexpected message type: " + type);
+            }
+
+            // The output files are stored while they are received.
+            Request request = Request.read(rm, output);
+
+            // Finishing the message allows Ibis to deliver the next request 
+            // in another thread while this one is being handled.
+            rm.finish();
+
+            handleRequest(target, request);
+        }
+    }
    
     /** The input directory */
     String inputDir;
+
+    /** The output directory, in which output files are received */
+    File output;
    
     /** The output directory */
     String outputDir;
     
-    /** A list of all jobs */
-    LinkedList<Job> jobs = new LinkedList<Job>();    
+    /** A queue of all jobs that have not been handed out */
+    ConcurrentLinkedQueue<Job> jobs = new ConcurrentLinkedQueue<Job>();    
     
     /** The Ibis to use */
     Ibis ibis;
@@ -36,12 +96,44 @@ public class JobServer {
     /** The ReceivePort for incoming job requests and results. */
     ReceivePort rp;
     
-    /** A HashMap containing the IDs of all known workers and the SendPorts to reach them */
-    HashMap<IbisIdentifier, SendPort> workers = 
-            new HashMap<IbisIdentifier, SendPort>();
+    /** A map containing the IDs and state of all known workers */
+    ConcurrentHashMap<IbisIdentifier, Worker> workers = 
+            new ConcurrentHashMap<IbisIdentifier, Worker>();
+
+    /** The IDs of all workers that have been sent an empty job */
+    Set<IbisIdentifier> done = 
+            Collections.newSetFromMap(new ConcurrentHashMap<IbisIdentifier, Boolean>());
+
+    /** The number of jobs handed out for which no result has been received yet */
+    AtomicInteger outstanding = new AtomicInteger();
+
+    /** The number of batches being sent, whose jobs return to the queue if the send fails */
+    int sending = 0;
 
     /** A job counter */
     int number = 0;
+
+    /** Number of threads storing output files */
+    static final int WRITERS = 2;
+
+    /** Number of output files that may wait to be stored */
+    static final int WRITE_QUEUE = 1024;
+
+    /** Time in milliseconds a large batch may wait for budget before smaller ones can no longer overtake it */
+    static final long BUDGET_WAIT = 10000;
+
+    /** The content of the script */
+    byte[] scriptBuffer;
+
+    /** The content hash of the script */
+    String scriptHash;
+
+    /** The budget limiting the bytes of input files being sent */
+    ByteBudget budget;
+
+    /** The write-behind stage that stores output files */
+    WriteBehind writer;
+
     
     /**
      *  Constructor to create a JobServer      
@@ -50,17 +142,28 @@ public class JobServer {
      * @param arguments command line arguments for the executable.
      * @param inputDir path to a local input directory.
      * @param outputDir path to a local output directory.
+     * @param budget the number of bytes of input files that may be sent at once, or 0 if unlimited.
+     * @param sync the interval in milliseconds at which output files are forced to disk, or 0 to never force them.
      * @param p properties needed to initialize the IPL.
      * @throws Exception if the IPL failed to initialize.
      */
-    JobServer(String script, String inputDir, String outputDir, Properties p) 
-            throws Exception {  
+    JobServer(String script, String inputDir, String outputDir, long budget, long sync, 
+            Properties p) throws Exception {  
         
         this.inputDir = inputDir; 
         this.outputDir = outputDir;
+        this.budget = new ByteBudget(budget, BUDGET_WAIT, null);
+        this.writer = new WriteBehind(WRITERS, WRITE_QUEUE, sync);
+
+        output = new File(outputDir);
+        output.mkdirs();
+
+        // The script is the same for all jobs, so it is read only once.
+        scriptBuffer = Shared.read(script);
+        scriptHash = Shared.hash(scriptBuffer);
         
         for (String file : Shared.listFiles(inputDir, ".jpg")) { 
-            jobs.add(new Job(number++, script, file, "out-" + file));
+            jobs.add(new Job(number++, script, scriptHash, file, "out-" + file));
         }
         
         ibis = IbisFactory.createIbis(Shared.ibisCapabilities, p, true, null,
@@ -68,117 +171,329 @@ public class JobServer {
         
         ibis.registry().elect("JobServer");        
         
-        rp = ibis.createReceivePort(Shared.portTypeServer, "receiver");
+        rp = ibis.createReceivePort(Shared.portTypeServer, "receiver", new Handler());
         rp.enableConnections();
     }
 
+    /**
+     * Retrieves the state of a PilotJob, adding it if needed.
+     * 
+     * @param target the IbisIdentifier of the PilotJob.
+     * @return the state of the PilotJob.
+     */
+    Worker getWorker(IbisIdentifier target) {
+        Worker worker = workers.get(target);
+
+        if (worker == null) { 
+            worker = new Worker(target);
+            Worker old = workers.putIfAbsent(target, worker);
+
+            if (old != null) { 
+                worker = old;
+            }
+        }
+
+        return worker;
+    }
+
     /**
      * Retrieves a SendPort for a PilotJob.
      * 
      * If necessary, a new SendPort is created and connected to the 
      * target PilotJob. This SendPort will be cached for later use. 
+     * The caller must hold the lock of the worker.
      * 
-     * @param target the IbisIdentifier of the target PilotJob.
+     * @param worker the target PilotJob.
      * @return a SendPort connected to the target PilotJob.
      * @throws IOException if the connection setup failed. 
      */
-    SendPort getSendPort(IbisIdentifier target) throws IOException {
-        SendPort sp = workers.get(target);
-        
-        if (sp == null) {
-            sp = ibis.createSendPort(Shared.portTypeSlave);
-            sp.connect(target, "receiver");
-            workers.put(target, sp);
+    SendPort getSendPort(Worker worker) throws IOException {
+        if (worker.sp == null) {
+            worker.sp = ibis.createSendPort(Shared.portTypeSlave);
+            worker.sp.connect(worker.id, "receiver");
         }
         
-        return sp;
+        return worker.sp;
     }
     
     /**
-     * Closes and removes the SendPort for a PilotJob.
+     * Closes and removes the SendPort for a PilotJob. The caller must hold 
+     * the lock of the worker.
      * 
-     * @param target the target PilotJob.
+     * @param worker the target PilotJob.
      */
-    void removeSendPort(IbisIdentifier target) {
-        SendPort sp = workers.remove(target);
+    void removeSendPort(Worker worker) {
+        SendPort sp = worker.sp;
+        worker.sp = null;
+        worker.cached.clear();
 
         if (sp != null) { 
             try { 
                 sp.close();
             } catch (Exception e) {
-                System.err.println("Failed to close Sendport to " + target + ": " + e);
+                System.err.println("Failed to close Sendport to " + worker.id + ": " + e);
                 e.printStackTrace(System.err);
             }
         }
     }
     
     /**
-     * Send a job to a PilotJob 
+     * Send a batch of jobs to a PilotJob. The caller must hold the lock of 
+     * the worker. 
      *
-     * @param target the target PilotJob.
-     * @param job the Job to send.
+     * @param worker the target PilotJob.
+     * @param batch the jobs to send, ending with an empty job if this is the last batch.
      * @throws IOException if the send has failed. 
      */    
-    void sendReply(IbisIdentifier target, Job job) throws IOException {
-        SendPort sp = getSendPort(target);
-        
-        if (!job.empty) {
-            job.setData(Shared.read(job.script), 
-                         Shared.read(inputDir + File.separator + job.inputFile));
+    void sendReply(Worker worker, Job[] batch) throws IOException {
+        SendPort sp = getSendPort(worker);
+
+        for (Job job : batch) { 
+            if (!job.empty) {
+                // Only send the script if the worker has not received it before.
+                job.setData(worker.cached.contains(job.scriptHash) ? null : scriptBuffer, 
+                             new File(inputDir, job.inputFile));
+                worker.cached.add(job.scriptHash);
+            }
         }
 
         WriteMessage wm = sp.newMessage();
-        wm.writeObject(job);
+        Job.writeBatch(wm, batch);
         wm.finish();
 
-        if (job.empty) {
-            removeSendPort(target);
+        if (batch.length > 0 && batch[batch.length-1].empty) {
+            removeSendPort(worker);
         }
     }
 
     /** 
-     * Store an output file in the local output directory.
+     * Hands an output file to the write-behind stage, which stores it in 
+     * the local output directory by moving the temporary file it was 
+     * received in. The output of a failed job is deleted.
      * 
      * @param result the Result to process.
      */
     void processResult(Result result) {
-        if (!result.empty && result.status == 0) {
-            try { 
-                Shared.write(outputDir + File.separator + result.outputFile, result.outputBuffer);
-            } catch (Exception e) {
-                System.out.println("Failed to store output file: " + result.outputFile);
-                e.printStackTrace();
+        if (result.empty || result.output == null) {
+            return;
+        }
+
+        if (result.status == 0) {
+            writer.store(result.output, new File(output, result.outputFile), null);
+        } else { 
+            writer.delete(result.output, null);
+        }
+    }
+
+    /** 
+     * Store the output files of a number of Results in the local output directory.
+     * 
+     * @param results the Results to process.
+     */
+    void processResults(Result[] results) {
+        for (Result result : results) { 
+            processResult(result);
+        }
+    }
+
+    /** 
+     * Handle an incoming request. This method may be called by several 
+     * threads at once. 
+     * 
+     * @param target the PilotJob that sent the request.
+     * @param request the request to handle.
+     */
+    void handleRequest(IbisIdentifier target, Request request) {
+        if (request.wanted > 0) { 
+            Worker worker = getWorker(target);
+
+            synchronized (worker) { 
+                try { 
+                    serve(worker, request.wanted);
+                } catch (InterruptedException e) {
+                    System.err.println("Interrupted while serving " + worker.id);
+                }
+            }
+        }
+
+        // The results must be handed to the write-behind stage before they 
+        // are counted, as the main loop shuts it down once all are counted.
+        processResults(request.results);
+        outstanding.addAndGet(-request.results.length);
+
+        synchronized (this) { 
+            notifyAll();
+        }
+    }
+
+    /** 
+     * Takes a batch of jobs from the queue for a PilotJob. If this empties 
+     * the job queue, the batch ends with an empty job to tell the worker it 
+     * is done. As the jobs of a batch that cannot be sent return to the 
+     * queue, the empty job is only handed out when no other batch is being 
+     * sent. Until then, a request that finds the queue empty waits.
+     * 
+     * @param worker the PilotJob requesting jobs.
+     * @param wanted the number of jobs requested.
+     * @return the batch.
+     * @throws InterruptedException if the thread was interrupted.
+     */
+    synchronized ArrayList<Job> take(Worker worker, int wanted) throws InterruptedException { 
+        while (jobs.isEmpty() && sending > 0) { 
+            wait();
+        }
+
+        ArrayList<Job> batch = new ArrayList<Job>(wanted + 1);
+
+        while (batch.size() < wanted) { 
+            Job job = jobs.poll();
+
+            if (job == null) { 
+                break;
             }
+
+            batch.add(job);
+        }
+
+        if (jobs.isEmpty() && sending == 0) { 
+            batch.add(new Job());
+            done.add(worker.id);
+        }
+
+        if (batch.size() > 0 && !batch.get(0).empty) { 
+            sending++;
         }
+
+        return batch;
     }
 
-    /** Handle an incoming message */
-    void handleRequest() throws IOException, ClassNotFoundException {
-        ReadMessage rm = rp.receive();
-        IbisIdentifier target = rm.origin().ibisIdentifier();
-        Result result = (Result) rm.readObject();
-        rm.finish();
+    /** 
+     * Registers that a batch has been sent, or has been returned to the 
+     * queue. 
+     */
+    synchronized void batchSent() { 
+        sending--;
+        notifyAll();
+    }
 
-        
-        Job job = null; 
-        
-        if (jobs.size() > 0) { 
-            job = jobs.removeFirst();
-            System.out.println("Sending job " + job.jobID + " to " + target);
-        } else { 
-            job = new Job();
-            System.out.println("Sending empty job to " + target);
+    /** 
+     * Checks if any PilotJob may still request jobs. 
+     * 
+     * @return if a PilotJob has not been sent an empty job.
+     */
+    boolean alive() { 
+        for (IbisIdentifier id : workers.keySet()) { 
+            if (!done.contains(id)) { 
+                return true;
+            }
         }
-        
-        sendReply(target, job);
-        processResult(result);
+
+        return false;
+    }
+
+    /** 
+     * Hand out a batch of jobs to a PilotJob. The caller must hold the lock 
+     * of the worker. 
+     * 
+     * @param worker the PilotJob requesting jobs.
+     * @param wanted the number of jobs requested.
+     * @throws InterruptedException if the thread was interrupted.
+     */
+    void serve(Worker worker, int wanted) throws InterruptedException { 
+        // A worker that has already been sent an empty job may still return 
+        // the results of jobs it had prefetched. These do not need a reply.
+        if (done.contains(worker.id)) { 
+            return;
+        }
+
+        ArrayList<Job> batch = take(worker, wanted);
+        boolean last = batch.size() > 0 && batch.get(batch.size()-1).empty;
+
+        int count = last ? batch.size() - 1 : batch.size();
+        outstanding.addAndGet(count);
+
+        long bytes = 0;
+
+        for (Job job : batch) { 
+            if (!job.empty) { 
+                bytes += new File(inputDir, job.inputFile).length();
+            }
+        }
+
+        System.out.println("Sending " + count + " jobs to " + worker.id);
+
+        if (last) { 
+            System.out.println("Sending empty job to " + worker.id);
+        }
+
+        boolean reserved = false;
+
+        try { 
+            budget.acquire(bytes);
+            reserved = true;
+            sendReply(worker, batch.toArray(new Job[batch.size()]));
+        } catch (Exception e) {
+            System.err.println("Failed to send jobs to " + worker.id + ": " + e);
+            e.printStackTrace(System.err);
+
+            // Stop serving this worker, and give the jobs to the others. If 
+            // none are left, the jobs cannot be executed anymore.
+            done.add(worker.id);
+            removeSendPort(worker);
+
+            boolean requeue = alive();
+
+            for (Job job : batch) { 
+                if (job.empty) { 
+                    continue;
+                }
+
+                if (requeue) { 
+                    job.setData(null, null);
+                    jobs.add(job);
+                } else { 
+                    System.err.println("Giving up on job " + job.jobID + ": no PilotJobs left to execute it");
+                }
+            }
+
+            outstanding.addAndGet(-count);
+        } finally { 
+            if (reserved) { 
+                budget.release(bytes);
+            }
+
+            if (count > 0) { 
+                batchSent();
+            }
+        }
+    }
+
+    /** 
+     * Checks if all jobs are done: no jobs are left, all results have been 
+     * received, and all workers have been sent an empty job.
+     * 
+     * @return if all jobs are done.
+     */
+    boolean finished() {
+        return jobs.isEmpty() && outstanding.get() == 0 
+                && done.containsAll(workers.keySet());
     }
 
     /** Main loop */
     void run() throws Exception {
-        while (jobs.size() > 0 || workers.size() > 0) {
-            handleRequest();
+        rp.enableMessageUpcalls();
+
+        synchronized (this) { 
+            while (!finished()) { 
+                wait();
+            }
         }
+
+        writer.shutdown();
+
+        System.out.println(budget);
+        System.out.println(writer);
+        BufferPool.report();
     }
     
     /** Main method for stand-alone job server (for use in IbisDeploy). */
@@ -186,6 +501,8 @@ public class JobServer {
         String script = null;
         String inputdir = null;
         String outputdir = null;
+        long budget = 256;
+        long sync = 0;
 
         for (int i = 0; i < args.length; i++) {
             if (args[i].startsWith("--script")) {
@@ -197,6 +514,12 @@ public class JobServer {
             } else if (args[i].startsWith("--output")) {
                 outputdir = args[++i];
 
+            } else if (args[i].startsWith("--budget")) {
+                budget = Long.parseLong(args[++i]);
+
+            } else if (args[i].startsWith("--sync")) {
+                sync = Long.parseLong(args[++i]);
+
             } else {
                 System.err.println("Unknown option: " + args[i]);
                 System.exit(1);
@@ -208,7 +531,8 @@ public class JobServer {
             System.exit(1);
         }
 
-        JobServer jobServer = new JobServer(script, inputdir, outputdir, new Properties());
+        JobServer jobServer = new JobServer(script, inputdir, outputdir, 
+                budget * 1024 * 1024, sync, new Properties());
         jobServer.run();
     }
 }
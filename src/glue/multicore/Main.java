@@ -2,8 +2,10 @@ package glue.multicore;
 
 import ibis.ipl.server.Server;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Properties;
 
 import org.gridlab.gat.GAT;
@@ -41,11 +43,14 @@ public class Main {
      * 
      * @param serverAddress the location of the Ibis Server. 
      * @param javaLocation path to the java executable on the target resource.
+     * @param prefetch the number of jobs each PilotJob keeps locally for each core.
+     * @param options additional options for the PilotJob.
      * @return a JodDescription for starting a PilotJob 
      * @throws GATObjectCreationException if creating the JobDescription failed.  
      */
     public static JobDescription prepareJob(String serverAddress,
-            String javaLocation) throws GATObjectCreationException {
+            String javaLocation, int prefetch, List<String> options) 
+            throws GATObjectCreationException {
 
         JavaSoftwareDescription sd = new JavaSoftwareDescription();
 
@@ -59,6 +64,13 @@ public class Main {
         sd.setExecutable(javaLocation);
         sd.setJavaClassPath("ipl/*:glue-examples.jar:.");
         sd.setJavaSystemProperties(properties);
+
+        ArrayList<String> arguments = new ArrayList<String>();
+        arguments.add("--prefetch");
+        arguments.add(Integer.toString(prefetch));
+        arguments.addAll(options);
+        sd.setJavaArguments(arguments.toArray(new String[arguments.size()]));
+
         sd.setJavaMain("glue.multicore.PilotJob");
 
         // Create files for stdout and stderr
@@ -100,6 +112,12 @@ public class Main {
         String script = null;
         String inputdir = null;
         String outputdir = null;
+        int prefetch = 2;
+        long budget = 256;
+        long sync = 0;
+
+        // Options passed on to the PilotJobs
+        ArrayList<String> options = new ArrayList<String>();
 
         for (int i = 0; i < args.length; i++) {
             if (args[i].startsWith("--resource")) {
@@ -114,6 +132,25 @@ public class Main {
             } else if (args[i].startsWith("--output")) {
                 outputdir = args[++i];
 
+            } else if (args[i].startsWith("--prefetch")) {
+                prefetch = Integer.parseInt(args[++i]);
+
+            } else if (args[i].startsWith("--budget")) {
+                budget = Long.parseLong(args[++i]);
+
+            } else if (args[i].startsWith("--sync")) {
+                sync = Long.parseLong(args[++i]);
+
+            } else if (args[i].equals("--persistent") || args[i].equals("--adapt")) {
+                options.add(args[i]);
+
+            } else if (args[i].startsWith("--slots") || args[i].startsWith("--min-slots") 
+                    || args[i].startsWith("--max-slots") || args[i].startsWith("--adapt-interval")
+                    || args[i].startsWith("--job-timeout") || args[i].startsWith("--recycle-jobs")
+                    || args[i].startsWith("--recycle-memory")) {
+                options.add(args[i]);
+                options.add(args[++i]);
+
             } else {
                 System.err.println("Unknown option: " + args[i]);
                 System.exit(1);
@@ -132,14 +169,15 @@ public class Main {
         p.put("ibis.server.address", reg.getAddress());
         p.put("ibis.pool.name", "PILOT");
 
-        JobServer jobServer = new JobServer(script, inputdir, outputdir, p);
+        JobServer jobServer = new JobServer(script, inputdir, outputdir, budget * 1024 * 1024, sync, p);
         LinkedList<Job> gatJobs = new LinkedList<Job>();
 
         for (Resource resource : resources) {
             System.out.println("Deploying to resource: " + resource.brokerURI);
         
             ResourceBroker broker = GAT.createResourceBroker(new URI(resource.brokerURI));
-            Job gatJob = broker.submitJob(prepareJob(reg.getAddress(), resource.javaLocation));            
+            Job gatJob = broker.submitJob(prepareJob(reg.getAddress(), resource.javaLocation, 
+                    prefetch, options));            
             gatJobs.add(gatJob);
         }
 
@@ -1,5 +1,15 @@
 package glue.multicore;
 
+import glue.util.BufferPool;
+import glue.util.CoProcess;
+import glue.util.CpuMonitor;
+import glue.util.ProcessExecutor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingDeque;
+
 import ibis.ipl.Ibis;
 import ibis.ipl.IbisFactory;
 import ibis.ipl.IbisIdentifier;
@@ -8,24 +18,352 @@ import ibis.ipl.ReceivePort;
 import ibis.ipl.SendPort;
 import ibis.ipl.WriteMessage;
 
-/** PilotJob which retrieves jobs from the JobServer and executes them. */
-public class PilotJob extends Thread {
+/**
+ * PilotJob which retrieves jobs from the JobServer and executes them. A single
+ * PilotJob (and Ibis) is used per node, which executes jobs on a number of
+ * execution slots, typically one per core.
+ *
+ * The PilotJob acts as a local scheduler for its slots: it requests jobs from
+ * the JobServer in bulk, keeps them in a local buffer from which the slots are
+ * fed, and returns the results of several jobs in a single message. This way
+ * the number of messages handled by the JobServer depends on the number of
+ * nodes rather than the number of cores.
+ *
+ * By default, one slot is used per core this process may use. Optionally, a 
+ * Controller adapts the number of active slots to the jobs, between a floor 
+ * and a ceiling.
+ */
+public class PilotJob {
+
+    /**
+     * Thread that receives batches of jobs from the JobServer and stores them
+     * in the local job queue, so the next job is available as soon as a slot
+     * becomes free.
+     */
+    class Prefetcher extends Thread {
+
+        Prefetcher() {
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                Job[] batch;
+
+                do {
+                    ReadMessage rm = rp.receive();
+                    byte type = Shared.readHeader(rm);
+
+                    if (type != Shared.MESSAGE_JOBS) {
+                        throw new IOException("Unexpected message type: " + type);
+                    }
+
+                    batch = Job.readBatch(rm);
+                    rm.finish();
+
+                    int count = 0;
+
+                    for (Job job : batch) {
+                        if (!job.empty) {
+                            // Store the script before any slot can run a job
+                            // that refers to it, as only the first job carries it.
+                            job.cacheScript();
+                            queue.put(job);
+                            count++;
+                        }
+                    }
+
+                    received(count, isLast(batch));
+                } while (!isLast(batch));
+
+            } catch (Exception e) {
+                System.err.println("PilotJob failed to receive job: " + e);
+                e.printStackTrace(System.err);
+                received(0, true);
+            }
+
+            // Make sure the slots terminate.
+            queue.offer(new Job());
+        }
+    }
+
+    /** 
+     * Thread that executes jobs from the local job queue. In persistent mode, 
+     * each slot runs its jobs on its own worker process. 
+     */
+    class Slot extends Thread {
+
+        /** The index of this slot, which only takes jobs while it is below the limit */
+        final int index;
+
+        /** The persistent worker of this slot, or null if not started */
+        CoProcess worker;
+
+        Slot(int index) {
+            this.index = index;
+        }
+
+        /**
+         * Execute a job, on the persistent worker if enabled.
+         * 
+         * @param job the job to execute.
+         * @return the result of the job.
+         */
+        Result execute(Job job) {
+            if (!persistent) { 
+                return job.execute();
+            }
+
+            String[] command = new String[] { "/bin/sh", job.scriptName() };
+
+            // A job with a different script needs a different worker.
+            if (worker != null && !Arrays.equals(worker.command(), command)) { 
+                stopWorker();
+            }
+
+            if (worker == null) { 
+                worker = new CoProcess(command, recycleJobs, recycleMemory, jobTimeout);
+            }
+
+            return job.execute(worker);
+        }
+
+        /** Stop the persistent worker, if any. */
+        void stopWorker() {
+            if (worker != null) { 
+                worker.stop();
+                System.out.println(worker);
+                worker = null;
+            }
+        }
+
+        public void run() {
+            try {
+                while (waitActive(index)) {
+                    Job job = queue.take();
+
+                    if (job.empty) {
+                        // Leave the empty job for the other slots.
+                        queue.put(job);
+                        drained();
+                        break;
+                    }
+
+                    // The slot may have been deactivated while it waited for 
+                    // the job. Return the job to the front of the queue, 
+                    // ahead of an empty job.
+                    if (!isActive(index)) {
+                        queue.putFirst(job);
+                        stopWorker();
+                        continue;
+                    }
+
+                    finished(execute(job));
+
+                    // A slot that is no longer active releases its worker.
+                    if (!isActive(index)) {
+                        stopWorker();
+                    }
+                }
+            } catch (Exception e) {
+                System.err.println("PilotJob slot failed: " + e);
+                e.printStackTrace(System.err);
+            } finally {
+                stopWorker();
+                stopped();
+            }
+        }
+    }
+
+    /**
+     * Thread that adapts the number of active slots to maximize the number of
+     * jobs completed per second. 
+     *
+     * At every interval it compares the throughput with that of the previous 
+     * interval, and changes the number of active slots by one (hill climbing). 
+     * A change that improved the throughput is repeated, and one that reduced 
+     * it is reversed. If the throughput did not change, slots are added while 
+     * the CPUs are underutilized (the jobs wait for I/O), and removed while 
+     * they are saturated (the jobs compete for the CPUs). The utilization is 
+     * relative to the cgroup CPU quota, if any.
+     */
+    class Controller extends Thread {
+
+        /** Utilization below which the CPUs are considered underutilized */
+        static final double LOW = 0.75;
+
+        /** Utilization above which the CPUs are considered saturated */
+        static final double HIGH = 0.95;
+
+        /** Relative change in throughput that is considered noise */
+        static final double TOLERANCE = 0.05;
+
+        /** The direction of the last change (-1, 0, or 1) */
+        int direction = 0;
+
+        /** The throughput in the previous interval, or -1 if unknown */
+        double previous = -1;
+
+        Controller() {
+            setDaemon(true);
+        }
+
+        /**
+         * Decide the number of active slots for the next interval.
+         *
+         * @param current the current number of active slots.
+         * @param rate the number of jobs completed per second.
+         * @param cpu the CPU utilization, or -1 if unknown.
+         * @return the new number of active slots.
+         */
+        int adapt(int current, double rate, double cpu) {
+            boolean reversed = false;
+
+            if (previous >= 0 && rate < previous * (1 - TOLERANCE)) {
+                direction = direction == 0 ? -1 : -direction;
+                reversed = true;
+            } else if (previous < 0 || rate <= previous * (1 + TOLERANCE)) {
+                if (cpu >= HIGH) {
+                    direction = -1;
+                } else if (cpu >= 0 && cpu < LOW) {
+                    direction = 1;
+                } else {
+                    direction = 0;
+                }
+            }
+
+            // Adding slots does not help if the CPUs are saturated, unless 
+            // the last removal reduced the throughput.
+            if (direction > 0 && cpu >= HIGH && !reversed) {
+                direction = 0;
+            }
+
+            previous = rate;
+
+            return Math.max(minSlots, Math.min(slots, current + direction));
+        }
+
+        public void run() {
+            long start = System.currentTimeMillis();
+
+            while (true) {
+                try {
+                    Thread.sleep(adaptInterval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                int done;
+                int current;
+
+                synchronized (PilotJob.this) {
+                    if (last) {
+                        // The remaining jobs say nothing about the throughput.
+                        return;
+                    }
+
+                    // Too few jobs completed for a meaningful measurement, 
+                    // so extend the interval.
+                    if (completed < limit) {
+                        continue;
+                    }
+
+                    done = completed;
+                    current = limit;
+                    completed = 0;
+                }
+
+                long now = System.currentTimeMillis();
+                double rate = done * 1000.0 / Math.max(1, now - start);
+                double cpu = monitor.utilization();
+                start = now;
+
+                int next = adapt(current, rate, cpu);
+
+                System.out.println("PilotJob: " + String.format("%.2f", rate) + " jobs/s, cpu " 
+                        + String.format("%.0f%%", 100 * cpu) + ", active slots " + current 
+                        + (next != current ? " -> " + next : ""));
+
+                setLimit(next);
+            }
+        }
+    }
 
     /** The ibis used for communication */
     Ibis ibis;
-    
+
     /** The receiveport used to receive jobs */
     ReceivePort rp;
-    
+
     /** The sendport used to return results and job requests */
     SendPort sp;
 
-    /** 
-     * Constructor that creates a PilotJob 
-     * 
-     * @throws Exception if Ibis failed to initialize. 
+    /** The number of execution slots (the ceiling of the active slots) */
+    final int slots;
+
+    /** The number of slots that take jobs */
+    int limit;
+
+    /** The lowest number of active slots the Controller may choose */
+    int minSlots = 1;
+
+    /** The interval in milliseconds at which the active slots are adapted, or 0 if they are fixed */
+    long adaptInterval = 0;
+
+    /** Measures the CPU utilization for the Controller */
+    CpuMonitor monitor;
+
+    /** The number of jobs completed since the Controller last checked */
+    int completed = 0;
+
+    /** Set when a slot has taken the empty job, so all slots must terminate */
+    boolean drained = false;
+
+    /** The number of jobs to keep locally for each slot (including the running one) */
+    final int prefetch;
+
+    /** Set if each slot runs its jobs on a persistent worker process */
+    boolean persistent = false;
+
+    /** The number of jobs after which a persistent worker is replaced (0 if unlimited) */
+    int recycleJobs = 1000;
+
+    /** The resident memory in bytes above which a persistent worker is replaced (0 if unlimited) */
+    long recycleMemory = 0;
+
+    /** The time in milliseconds a job may take on a persistent worker before it is killed (0 if unlimited) */
+    long jobTimeout = 0;
+
+    /** The jobs received from the JobServer that have not been executed yet */
+    final LinkedBlockingDeque<Job> queue = new LinkedBlockingDeque<Job>();
+
+    /** The results that have not been returned to the JobServer yet */
+    ArrayList<Result> results = new ArrayList<Result>();
+
+    /** The number of jobs that are queued, running, or requested */
+    int held = 0;
+
+    /** The number of jobs requested but not received yet */
+    int requested = 0;
+
+    /** The number of slots that have not terminated yet */
+    int active;
+
+    /** Set when the JobServer has no more jobs for this PilotJob */
+    boolean last = false;
+
+    /**
+     * Constructor that creates a PilotJob
+     *
+     * @param slots the number of jobs to execute concurrently (at least 1).
+     * @param prefetch the number of jobs to keep locally for each slot (at least 1).
+     * @throws Exception if Ibis failed to initialize.
      */
-    PilotJob() throws Exception {
+    PilotJob(int slots, int prefetch) throws Exception {
+        this.slots = Math.max(1, slots);
+        this.limit = this.slots;
+        this.prefetch = Math.max(1, prefetch);
+
         // Create an Ibis
         ibis = IbisFactory.createIbis(Shared.ibisCapabilities, null,
                 Shared.portTypeServer, Shared.portTypeSlave);
@@ -33,75 +371,279 @@ public class PilotJob extends Thread {
         // Retrieve the identifier of the JobServer
         IbisIdentifier server = ibis.registry().getElectionResult("JobServer");
 
-        // Create a receiveport and enable connections 
+        // Create a receiveport and enable connections
         rp = ibis.createReceivePort(Shared.portTypeSlave, "receiver");
         rp.enableConnections();
 
-        // Create a sendport and connect it to the JobServer 
+        // Create a sendport and connect it to the JobServer
         sp = ibis.createSendPort(Shared.portTypeServer);
         sp.connect(server, "receiver");
     }
 
-    /** 
-     * Send a result to the JobServer and receive a new Job.
-     * 
-     * @param previousResult the result to send to the JobServer. 
-     * @return the new Job returned by the JobServer.
-     * @throws Exception if the communication failed. 
+    /**
+     * Checks if a batch ends with an empty job, which indicates that the
+     * JobServer has no more work for this PilotJob.
+     *
+     * @param batch the batch to check.
+     * @return if this is the last batch.
+     */
+    static boolean isLast(Job[] batch) {
+        return batch.length == 0 || batch[batch.length - 1].empty;
+    }
+
+    /**
+     * Registers the arrival of a batch of jobs.
+     *
+     * @param count the number of jobs received.
+     * @param last if the JobServer has no more jobs for this PilotJob.
+     */
+    synchronized void received(int count, boolean last) {
+        requested -= count;
+
+        if (last) {
+            this.last = true;
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Registers the result of a job, which is returned to the JobServer with
+     * the next request.
+     *
+     * @param result the Result of the job.
+     */
+    synchronized void finished(Result result) {
+        results.add(result);
+        held--;
+        completed++;
+        notifyAll();
+    }
+
+    /**
+     * Waits until a slot may take jobs.
+     *
+     * @param index the index of the slot.
+     * @return false if the slot must terminate.
+     * @throws InterruptedException if the thread was interrupted.
+     */
+    synchronized boolean waitActive(int index) throws InterruptedException {
+        while (index >= limit && !drained) {
+            wait();
+        }
+
+        return !drained;
+    }
+
+    /**
+     * Checks if a slot may take jobs.
+     *
+     * @param index the index of the slot.
+     * @return if the slot is active.
+     */
+    synchronized boolean isActive(int index) {
+        return index < limit;
+    }
+
+    /** Registers that the job queue has been drained, so the inactive slots terminate. */
+    synchronized void drained() {
+        drained = true;
+        notifyAll();
+    }
+
+    /**
+     * Change the number of active slots. This also changes the number of 
+     * jobs kept locally.
+     *
+     * @param limit the new number of active slots.
+     */
+    synchronized void setLimit(int limit) {
+        this.limit = limit;
+        notifyAll();
+    }
+
+    /** Registers the termination of a slot. */
+    synchronized void stopped() {
+        active--;
+        notifyAll();
+    }
+
+    /**
+     * Waits until a request should be sent to the JobServer, and returns it.
+     *
+     * New jobs are requested a round (one job per active slot) at a time, as soon as
+     * there is room for them, or earlier if the local buffer has run dry.
+     * Results are returned with the requests. Once the JobServer has no more
+     * jobs, results are returned a round at a time, and when the last slot
+     * terminates.
+     *
+     * @return the request to send, or null if the PilotJob is done.
+     * @throws InterruptedException if the thread was interrupted.
+     */
+    synchronized Request nextRequest() throws InterruptedException {
+        while (true) {
+            int capacity = limit * prefetch;
+            int round = Math.min(limit, Math.max(1, capacity - limit));
+
+            int wanted = last ? 0 : capacity - held;
+
+            boolean send;
+
+            if (last) {
+                send = results.size() > 0 && (results.size() >= limit || active == 0);
+            } else {
+                send = wanted >= round
+                        || (wanted > 0 && requested == 0 && queue.isEmpty());
+            }
+
+            if (send) {
+                Request request = new Request(results.toArray(new Result[results.size()]), wanted);
+                results.clear();
+                held += wanted;
+                requested += wanted;
+                return request;
+            }
+
+            if (last && active == 0) {
+                return null;
+            }
+
+            wait();
+        }
+    }
+
+    /**
+     * Send a request to the JobServer.
+     *
+     * @param request the request to send to the JobServer.
+     * @throws Exception if the communication failed.
      */
-    Job getWork(Result previousResult) throws Exception {
+    void sendRequest(Request request) throws Exception {
+        for (int i = 0; i < request.results.length; i++) {
+            request.results[i] = request.results[i].checked();
+        }
+
         WriteMessage wm = sp.newMessage();
-        wm.writeObject(previousResult);
+        request.write(wm);
         wm.finish();
-
-        ReadMessage rm = rp.receive();
-        Job job = (Job) rm.readObject();
-        rm.finish();
-        return job;
     }
 
     /** Main loop */
-    public void run() {
-        try { 
-            Job job = getWork(new Result());
+    void run() throws Exception {
+        active = slots;
 
-            while (!job.empty) {
-                Result result = job.execute();
-                job = getWork(result);
-            }
-    
-            ibis.end();
-        
-        } catch (Exception e) {
-            System.err.println("PilotJob failed: " + e);
-            e.printStackTrace(System.err);
+        new Prefetcher().start();
+
+        // Create and start the execution slots.
+        Slot [] tmp = new Slot[slots];
+
+        for (int i=0;i<slots;i++) {
+            tmp[i] = new Slot(i);
+            tmp[i].start();
+        }
+
+        if (adaptInterval > 0) {
+            System.out.println(monitor);
+            new Controller().start();
+        }
+
+        // Request jobs and return results until all slots have terminated.
+        Request request = nextRequest();
+
+        while (request != null) {
+            sendRequest(request);
+            request = nextRequest();
+        }
+
+        for (int i=0;i<slots;i++) {
+            tmp[i].join();
         }
+
+        BufferPool.report();
+        System.out.println(ProcessExecutor.common);
+        ibis.end();
     }
 
     /** Main method that creates and starts the PilotJob */
     public static void main(String[] args) {
-        
-        try {
-            // Detect the number of cores on this machine
-            int cores = Runtime.getRuntime().availableProcessors();
-            
-            // Create and start one thread for each core.
-            PilotJob [] pilots = new PilotJob[cores];
-            
-            for (int i=0;i<cores;i++) { 
-                pilots[i] = new PilotJob();
-                pilots[i].start();
-            }
+        // Use one slot for each core this process may use by default
+        CpuMonitor monitor = new CpuMonitor();
+        int slots = -1;
+        int minSlots = 1;
+        int maxSlots = -1;
+        long adaptInterval = 0;
+        int prefetch = 2;
+        boolean persistent = false;
+        int recycleJobs = 1000;
+        long recycleMemory = 0;
+        long jobTimeout = 0;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--prefetch")) {
+                prefetch = Integer.parseInt(args[++i]);
+
+            } else if (args[i].equals("--persistent")) {
+                persistent = true;
+
+            } else if (args[i].startsWith("--recycle-jobs")) {
+                recycleJobs = Integer.parseInt(args[++i]);
+
+            } else if (args[i].startsWith("--recycle-memory")) {
+                recycleMemory = Long.parseLong(args[++i]) * 1024 * 1024;
+
+            } else if (args[i].startsWith("--job-timeout")) {
+                jobTimeout = Long.parseLong(args[++i]) * 1000;
+
+            } else if (args[i].startsWith("--slots")) {
+                slots = Integer.parseInt(args[++i]);
+
+            } else if (args[i].equals("--adapt")) {
+                adaptInterval = adaptInterval > 0 ? adaptInterval : 10000;
+
+            } else if (args[i].startsWith("--adapt-interval")) {
+                adaptInterval = Long.parseLong(args[++i]) * 1000;
 
-            // Wait until all threads have terminated.
-            for (int i=0;i<cores;i++) { 
-                pilots[i].join();
+            } else if (args[i].startsWith("--min-slots")) {
+                minSlots = Integer.parseInt(args[++i]);
+
+            } else if (args[i].startsWith("--max-slots")) {
+                maxSlots = Integer.parseInt(args[++i]);
+
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(1);
             }
- 
+        }
+
+        if (slots < 0) {
+            slots = monitor.cpus();
+        }
+
+        // When adapting, a slot is created for the ceiling, and the initial 
+        // number of slots is activated.
+        int threads = slots;
+
+        if (adaptInterval > 0) { 
+            minSlots = Math.max(1, minSlots);
+            maxSlots = Math.max(minSlots, maxSlots < 0 ? 2 * monitor.cpus() : maxSlots);
+            slots = Math.max(minSlots, Math.min(maxSlots, slots));
+            threads = maxSlots;
+        }
+
+        try {
+            PilotJob pilot = new PilotJob(threads, prefetch);
+            pilot.limit = slots;
+            pilot.minSlots = minSlots;
+            pilot.adaptInterval = adaptInterval;
+            pilot.monitor = monitor;
+            pilot.persistent = persistent;
+            pilot.recycleJobs = recycleJobs;
+            pilot.recycleMemory = recycleMemory;
+            pilot.jobTimeout = jobTimeout;
+            pilot.run();
         } catch (Exception e) {
             System.err.println("PilotJob failed: " + e);
             e.printStackTrace(System.err);
         }
     }
 }
-
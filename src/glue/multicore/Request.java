@@ -0,0 +1,67 @@
+package glue.multicore;
+
+import java.io.File;
+import java.io.IOException;
+
+import ibis.ipl.ReadMessage;
+import ibis.ipl.WriteMessage;
+
+/**
+ * A request sent by a PilotJob to the JobServer. It returns the Results of all
+ * jobs the PilotJob has finished since its previous request, and asks for a
+ * number of new jobs to keep its slots busy.
+ */
+public class Request {
+
+    /** The Results of the finished jobs */
+    Result[] results;
+
+    /** The number of new jobs requested (0 if only results are returned) */
+    int wanted;
+
+    /**
+     * Constructor to create a Request
+     *
+     * @param results the Results of the finished jobs.
+     * @param wanted the number of new jobs requested.
+     */
+    Request(Result[] results, int wanted) {
+        this.results = results;
+        this.wanted = wanted;
+    }
+
+    /**
+     * Write this request to a message, including the message header.
+     *
+     * @param wm the message to write to.
+     * @throws IOException if the write failed.
+     */
+    void write(WriteMessage wm) throws IOException {
+        Shared.writeHeader(wm, Shared.MESSAGE_REQUEST);
+        wm.writeInt(wanted);
+        wm.writeInt(results.length);
+
+        for (Result result : results) {
+            result.write(wm);
+        }
+    }
+
+    /**
+     * Read a request from a message whose header has already been read.
+     *
+     * @param rm the message to read from.
+     * @param dir the directory to store the output files in.
+     * @return the request.
+     * @throws IOException if the read failed.
+     */
+    static Request read(ReadMessage rm, File dir) throws IOException {
+        int wanted = rm.readInt();
+        Result[] results = new Result[rm.readInt()];
+
+        for (int i = 0; i < results.length; i++) {
+            results[i] = Result.read(rm, dir);
+        }
+
+        return new Request(results, wanted);
+    }
+}
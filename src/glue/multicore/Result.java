@@ -1,15 +1,18 @@
 package glue.multicore;
 
-import java.io.Serializable;
+import java.io.File;
+import java.io.IOException;
+
+import glue.util.FileTransfer;
+import ibis.ipl.ReadMessage;
+import ibis.ipl.WriteMessage;
 
 /** 
  * The Result of a Job.  
  *  
  * @author jason
  */
-public class Result implements Serializable {
-
-    private static final long serialVersionUID = 7331001105371799850L;
+public class Result {
 
     /** Exit code of the Job */
     int status;
@@ -29,8 +32,11 @@ public class Result implements Serializable {
     /** Name of the output file */
     String outputFile;
 
-    /** Buffer containing the output file */
-    byte[] outputBuffer;
+    /** 
+     * The output file. On the PilotJob this is the file to send, on the 
+     * JobServer the temporary file it was received in. 
+     */
+    File output;
         
     /** Flag to indicate that this job is empty */
     final boolean empty;
@@ -48,14 +54,85 @@ public class Result implements Serializable {
     }
 
     /** Constructor to create a regular result */
-    Result(String outputFile, byte[] outputBuffer, byte[] stdout,
+    Result(String outputFile, File output, byte[] stdout,
             byte[] stderr, int status, long time) {
         this.empty = false;
         this.outputFile = outputFile;
-        this.outputBuffer = outputBuffer;
+        this.output = output;
         this.stdout = stdout;
         this.stderr = stderr;
         this.status = status;
         this.time = time;
     }
+
+    /**
+     * Checks if the output file to send still exists, as a missing file would
+     * abort the message and with it the results of the entire request.
+     *
+     * @return this Result, or a failed Result if the output file is missing.
+     */
+    Result checked() {
+        if (empty || output == null || output.isFile()) {
+            return this;
+        }
+
+        Result result = new Result(new IOException("Output file " + outputFile + " has disappeared"));
+        result.time = time;
+        result.stdout = stdout;
+        result.stderr = stderr;
+        result.outputFile = outputFile;
+        return result;
+    }
+
+    /**
+     * Write this result to a message. An exception is sent as its 
+     * description only, and the output file is streamed into the message.
+     *
+     * @param wm the message to write to.
+     * @throws IOException if the write failed.
+     */
+    void write(WriteMessage wm) throws IOException {
+        wm.writeBoolean(empty);
+
+        if (!empty) {
+            wm.writeInt(status);
+            wm.writeLong(time);
+            Shared.writeString(wm, e == null ? null : e.toString());
+            Shared.writeString(wm, outputFile);
+            Shared.writeBytes(wm, stdout);
+            Shared.writeBytes(wm, stderr);
+            FileTransfer.send(wm, output);
+        }
+    }
+
+    /**
+     * Read a result from a message. The output file is stored in a temporary
+     * file as it arrives.
+     *
+     * @param rm the message to read from.
+     * @param dir the directory to store the output file in.
+     * @return the result.
+     * @throws IOException if the read failed.
+     */
+    static Result read(ReadMessage rm, File dir) throws IOException {
+        if (rm.readBoolean()) {
+            return new Result();
+        }
+
+        int status = rm.readInt();
+        long time = rm.readLong();
+        String error = Shared.readString(rm);
+        String outputFile = Shared.readString(rm);
+        byte[] stdout = Shared.readBytes(rm);
+        byte[] stderr = Shared.readBytes(rm);
+        File output = FileTransfer.receiveTemporary(rm, dir, "." + outputFile + ".");
+
+        Result result = new Result(outputFile, output, stdout, stderr, status, time);
+
+        if (error != null) {
+            result.e = new Exception(error);
+        }
+
+        return result;
+    }
 }
@@ -1,15 +1,18 @@
 package glue.multicore;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 
+import glue.util.FileUtils;
 import glue.util.Filter;
 import ibis.ipl.IbisCapabilities;
 import ibis.ipl.PortType;
+import ibis.ipl.ReadMessage;
+import ibis.ipl.WriteMessage;
 
 /** 
  * Class containing various utility functions and constants.
@@ -18,15 +21,27 @@ import ibis.ipl.PortType;
  */
 public class Shared {
 
+    /** 
+     * Version of the wire format. Each message starts with this version and 
+     * the message type, and is written field by field using data serialization. 
+     */
+    public static final byte WIRE_VERSION = 1;
+
+    /** Message type of a batch of jobs, sent to a PilotJob */
+    public static final byte MESSAGE_JOBS = 1;
+
+    /** Message type of a request for jobs with a batch of results, sent to the JobServer */
+    public static final byte MESSAGE_REQUEST = 2;
+
     /** PortType used in communication to PilotJobs */
     public static final PortType portTypeSlave = new PortType(
-            PortType.COMMUNICATION_RELIABLE, PortType.SERIALIZATION_OBJECT,
+            PortType.COMMUNICATION_RELIABLE, PortType.SERIALIZATION_DATA,
             PortType.RECEIVE_EXPLICIT, PortType.CONNECTION_ONE_TO_ONE);
 
     /** PortType used in communication to JobServer */
     public static final PortType portTypeServer = new PortType(
-            PortType.COMMUNICATION_RELIABLE, PortType.SERIALIZATION_OBJECT,
-            PortType.RECEIVE_EXPLICIT, PortType.CONNECTION_MANY_TO_ONE);
+            PortType.COMMUNICATION_RELIABLE, PortType.SERIALIZATION_DATA,
+            PortType.RECEIVE_AUTO_UPCALLS, PortType.CONNECTION_MANY_TO_ONE);
 
     /** IbisCapabilities needed for both JobsServer and PilotJobs */
     public static final IbisCapabilities ibisCapabilities = new IbisCapabilities(
@@ -34,41 +49,116 @@ public class Shared {
 
     /** Read a file input a byte array */
     public static byte[] read(String file) throws IOException {
+        return FileUtils.read(file);
+    }
 
-        File tmp = new File(file);
+    /** Write a byte array to a file. Also created directory if needed */
+    public static void write(String fileName, byte[] data) throws IOException {
+        File file = new File(fileName);
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        FileUtils.write(fileName, data);
+    }
 
-        if (tmp.exists() && tmp.canRead() && tmp.isFile()) {
+    /** Compute the content hash (SHA-1, in hexadecimal) of a byte array. */
+    public static String hash(byte[] data) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            StringBuilder sb = new StringBuilder();
 
-            byte[] buffer = new byte[(int) tmp.length()];
+            for (byte b : md.digest(data)) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
 
-            FileInputStream f = new FileInputStream(tmp);
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // will not occur, SHA-1 is always available. 
+            throw new RuntimeException(e);
+        }
+    }
 
-            int offset = 0;
-            int read = 0;
+    /** 
+     * Make sure a file with constant content is available on disk. If the file 
+     * does not exist yet, the data is written to a temporary file first, which 
+     * is then renamed, so concurrent readers never see a partial file.
+     * If data is null, the file must already exist.
+     */
+    public static void cache(String fileName, byte[] data) throws IOException {
+        File file = new File(fileName).getAbsoluteFile();
+
+        if (file.exists()) { 
+            return;
+        }
 
-            while (offset < buffer.length) {
-                read = f.read(buffer, offset, buffer.length - offset);
+        if (data == null) {
+            throw new FileNotFoundException("File not cached: " + fileName);
+        }
 
-                if (read == -1) {
-                    throw new FileNotFoundException("Cannot read " + file);
-                }
+        file.getParentFile().mkdirs();
 
-                offset += read;
-            }
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        FileUtils.write(tmp.getPath(), data);
 
-            return buffer;
+        if (!tmp.renameTo(file) && !file.exists()) {
+            tmp.delete();
+            throw new IOException("Failed to cache " + fileName);
         }
 
-        throw new FileNotFoundException("Cannot access " + file);
+        tmp.delete();
     }
 
-    /** Write a byte array to a file. Also created directory if needed */
-    public static void write(String fileName, byte[] data) throws IOException {
-        File file = new File(fileName);
-        file.getAbsoluteFile().getParentFile().mkdirs();
-        FileOutputStream out = new FileOutputStream(file);
-        out.write(data);
-        out.close();
+    /** Read a string that may be null from a message */
+    public static String readString(ReadMessage rm) throws IOException {
+        return rm.readBoolean() ? rm.readString() : null;
+    }
+
+    /** Write a string that may be null to a message */
+    public static void writeString(WriteMessage wm, String s) throws IOException {
+        wm.writeBoolean(s != null);
+
+        if (s != null) {
+            wm.writeString(s);
+        }
+    }
+
+    /** Read a byte array that may be null from a message */
+    public static byte[] readBytes(ReadMessage rm) throws IOException {
+        int length = rm.readInt();
+
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] data = new byte[length];
+        rm.readArray(data);
+        return data;
+    }
+
+    /** Write a byte array that may be null to a message, preceded by its length (-1 for null) */
+    public static void writeBytes(WriteMessage wm, byte[] data) throws IOException {
+        if (data == null) {
+            wm.writeInt(-1);
+        } else {
+            wm.writeInt(data.length);
+            wm.writeArray(data);
+        }
+    }
+
+    /** Read the header of a message, check its version, and return its type */
+    public static byte readHeader(ReadMessage rm) throws IOException {
+        byte version = rm.readByte();
+
+        if (version != WIRE_VERSION) {
+            throw new IOException("Unsupported message version: " + version);
+        }
+
+        return rm.readByte();
+    }
+
+    /** Write the header of a message of the given type */
+    public static void writeHeader(WriteMessage wm, byte type) throws IOException {
+        wm.writeByte(WIRE_VERSION);
+        wm.writeByte(type);
     }
 
     /** List all files in a directory with a specific extention. */
@@ -0,0 +1,185 @@
+package glue.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of reusable byte buffers, organized in size classes of powers of
+ * two. A request is served from the smallest class that fits, so buffers of
+ * similar sizes are shared. Requests larger than the largest class, and
+ * buffers that do not fit in the pool's byte budget, are not pooled.
+ *
+ * The pools hold the transient buffers of the I/O paths: the chunks of file
+ * transfers and the copy buffers for the output of processes. The per-job
+ * arrays (the input data, stdout and stderr of a job) are not pooled, as
+ * they are handed on with the job or its result and have no clear owner to
+ * return them.
+ *
+ * The pool keeps statistics on its hit rate and the number of bytes handed
+ * out and not yet returned, which are reported by {@link #toString()}.
+ */
+public class BufferPool {
+
+    /** Smallest size class (1 KB) as a power of two */
+    static final int MIN_CLASS = 10;
+
+    /** Largest size class (16 MB) as a power of two */
+    static final int MAX_CLASS = 24;
+
+    /** Pool of heap buffers, for data that is processed in Java */
+    public static final BufferPool heap = new BufferPool("heap", false, 64L * 1024 * 1024);
+
+    /** Pool of direct buffers, for data that is passed to channels and the network */
+    public static final BufferPool direct = new BufferPool("direct", true, 64L * 1024 * 1024);
+
+    /** The name of this pool */
+    private final String name;
+
+    /** Set if this pool holds direct buffers */
+    private final boolean isDirect;
+
+    /** Maximum number of bytes kept in the pool */
+    private final long maxPooledBytes;
+
+    /** The free buffers of each size class */
+    private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+
+    /** Number of requests */
+    private final AtomicLong requests = new AtomicLong();
+
+    /** Number of requests served from the pool */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Number of bytes in buffers handed out and not returned yet */
+    private final AtomicLong outstanding = new AtomicLong();
+
+    /** Number of bytes in free buffers kept in the pool */
+    private final AtomicLong pooled = new AtomicLong();
+
+    /**
+     * Constructor to create a BufferPool
+     *
+     * @param name the name of the pool, used in reports.
+     * @param isDirect if the pool holds direct buffers.
+     * @param maxPooledBytes the maximum number of bytes kept in the pool.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public BufferPool(String name, boolean isDirect, long maxPooledBytes) {
+        this.name = name;
+        this.isDirect = isDirect;
+        this.maxPooledBytes = maxPooledBytes;
+
+        free = new ConcurrentLinkedQueue[MAX_CLASS + 1];
+
+        for (int i = MIN_CLASS; i <= MAX_CLASS; i++) {
+            free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+        }
+    }
+
+    /**
+     * Returns the size class of a buffer size.
+     *
+     * @param size the size of the buffer.
+     * @return the size class, or -1 if the size is too large to be pooled.
+     */
+    static int sizeClass(int size) {
+        int c = MIN_CLASS;
+
+        while ((1 << c) < size) {
+            if (++c > MAX_CLASS) {
+                return -1;
+            }
+        }
+
+        return c;
+    }
+
+    /**
+     * Get a buffer from the pool, or allocate a new one. The buffer may be
+     * larger than requested, but its limit is set to the requested size.
+     *
+     * @param size the number of bytes needed.
+     * @return a buffer with position 0 and limit size.
+     */
+    public ByteBuffer get(int size) {
+        requests.incrementAndGet();
+
+        int c = sizeClass(size);
+        ByteBuffer buffer = null;
+
+        if (c >= 0) {
+            buffer = free[c].poll();
+        }
+
+        if (buffer != null) {
+            hits.incrementAndGet();
+            pooled.addAndGet(-buffer.capacity());
+        } else {
+            int capacity = c >= 0 ? 1 << c : size;
+            buffer = isDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+
+        outstanding.addAndGet(buffer.capacity());
+
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Return a buffer obtained with {@link #get(int)} to the pool.
+     *
+     * @param buffer the buffer to return, or null.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+
+        int capacity = buffer.capacity();
+        outstanding.addAndGet(-capacity);
+
+        int c = sizeClass(capacity);
+
+        // Only buffers of exactly a class size are pooled.
+        if (c < 0 || (1 << c) != capacity || buffer.isDirect() != isDirect) {
+            return;
+        }
+
+        if (pooled.addAndGet(capacity) > maxPooledBytes) {
+            pooled.addAndGet(-capacity);
+            return;
+        }
+
+        free[c].offer(buffer);
+    }
+
+    /** @return the fraction of requests served from the pool. */
+    public double hitRate() {
+        long r = requests.get();
+        return r == 0 ? 0.0 : (double) hits.get() / r;
+    }
+
+    /** @return the number of bytes in buffers handed out and not returned yet. */
+    public long outstandingBytes() {
+        return outstanding.get();
+    }
+
+    /** @return the number of bytes in free buffers kept in the pool. */
+    public long pooledBytes() {
+        return pooled.get();
+    }
+
+    /** Print the statistics of the heap and direct pools. */
+    public static void report() {
+        System.out.println(heap);
+        System.out.println(direct);
+    }
+
+    public String toString() {
+        return "BufferPool " + name + ": " + requests.get() + " requests, hit rate "
+                + String.format("%.1f%%", 100.0 * hitRate()) + ", outstanding "
+                + outstanding.get() + " bytes, pooled " + pooled.get() + " bytes";
+    }
+}
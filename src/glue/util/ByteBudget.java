@@ -0,0 +1,271 @@
+package glue.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+/**
+ * A budget limiting the number of bytes of job data in flight. Before data
+ * is moved, its size is reserved in the budget, and the reservation is
+ * released once the data has been sent or stored.
+ *
+ * Reservations that do not fit wait in line, but a smaller reservation that
+ * fits may overtake a larger one that is waiting, so small jobs keep flowing
+ * while a big one waits for the budget. To prevent the big one from starving,
+ * nothing overtakes a reservation that has waited longer than a maximum
+ * time. A reservation larger than the entire budget is granted once nothing
+ * else is in flight.
+ */
+public class ByteBudget {
+
+    /** A reservation waiting for the budget */
+    private static class Waiter {
+        final long bytes;
+
+        /** The task to start once the reservation is granted, or null if a thread is waiting */
+        final Runnable task;
+
+        final long since = System.currentTimeMillis();
+
+        boolean granted = false;
+
+        Waiter(long bytes, Runnable task) {
+            this.bytes = bytes;
+            this.task = task;
+        }
+    }
+
+    /** The number of bytes that may be in flight, or 0 if unlimited */
+    private final long limit;
+
+    /** The time in milliseconds after which a waiting reservation may no longer be overtaken */
+    private final long maxBypass;
+
+    /** The executor running the deferred tasks */
+    private final Executor executor;
+
+    /** The number of bytes currently reserved */
+    private long used = 0;
+
+    /** The reservations waiting for the budget, oldest first */
+    private final LinkedList<Waiter> waiting = new LinkedList<Waiter>();
+
+    /** The largest number of bytes reserved at once */
+    private long peak = 0;
+
+    /** The number of reservations that had to wait */
+    private long deferred = 0;
+
+    /**
+     * Constructor to create a ByteBudget
+     *
+     * @param limit the number of bytes that may be in flight, or 0 if unlimited.
+     * @param maxBypass the time in milliseconds after which a waiting reservation may no longer be overtaken.
+     * @param executor the executor running deferred tasks.
+     */
+    public ByteBudget(long limit, long maxBypass, Executor executor) {
+        this.limit = limit;
+        this.maxBypass = maxBypass;
+        this.executor = executor;
+    }
+
+    /**
+     * Checks if a reservation fits in the budget. The caller must hold the lock.
+     *
+     * @param bytes the size of the reservation.
+     * @return if the reservation fits.
+     */
+    private boolean fits(long bytes) {
+        return used == 0 || used + bytes <= limit;
+    }
+
+    /**
+     * Reserve bytes. The caller must hold the lock.
+     *
+     * @param bytes the number of bytes to reserve.
+     */
+    private void reserve(long bytes) {
+        used += bytes;
+
+        if (used > peak) {
+            peak = used;
+        }
+    }
+
+    /**
+     * Grants the waiting reservations that fit, in order. A reservation that
+     * has waited too long stops smaller ones from overtaking it. The caller
+     * must hold the lock.
+     *
+     * @return the tasks of the granted reservations, to be started after the lock is released.
+     */
+    private ArrayList<Runnable> admit() {
+        ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+        long now = System.currentTimeMillis();
+
+        Iterator<Waiter> it = waiting.iterator();
+
+        while (it.hasNext()) {
+            Waiter w = it.next();
+
+            if (fits(w.bytes)) {
+                it.remove();
+                reserve(w.bytes);
+                w.granted = true;
+
+                if (w.task != null) {
+                    tasks.add(w.task);
+                }
+            } else if (now - w.since > maxBypass) {
+                break;
+            }
+        }
+
+        notifyAll();
+        return tasks;
+    }
+
+    /**
+     * Start tasks on the executor.
+     *
+     * @param tasks the tasks to start.
+     */
+    private void start(ArrayList<Runnable> tasks) {
+        for (Runnable task : tasks) {
+            executor.execute(task);
+        }
+    }
+
+    /**
+     * Start a task once its bytes fit in the budget. The task must call
+     * {@link #release(long)} with the same number of bytes when done. The
+     * calling thread does not wait.
+     *
+     * @param bytes the number of bytes the task moves.
+     * @param task the task to start.
+     */
+    public void defer(long bytes, Runnable task) {
+        if (limit <= 0) {
+            executor.execute(task);
+            return;
+        }
+
+        ArrayList<Runnable> tasks;
+
+        synchronized (this) {
+            Waiter w = new Waiter(bytes, task);
+            waiting.add(w);
+            tasks = admit();
+
+            if (!w.granted) {
+                deferred++;
+            }
+        }
+
+        start(tasks);
+    }
+
+    /**
+     * Wait until bytes fit in the budget, and reserve them. The caller must
+     * call {@link #release(long)} with the same number of bytes when done.
+     *
+     * @param bytes the number of bytes to reserve.
+     * @throws InterruptedException if the thread was interrupted while waiting.
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        if (limit <= 0) {
+            return;
+        }
+
+        Waiter w = new Waiter(bytes, null);
+        ArrayList<Runnable> tasks;
+
+        synchronized (this) {
+            waiting.add(w);
+            tasks = admit();
+        }
+
+        start(tasks);
+
+        synchronized (this) {
+            if (w.granted) {
+                return;
+            }
+
+            deferred++;
+
+            try {
+                while (!w.granted) {
+                    wait();
+                }
+                return;
+            } catch (InterruptedException e) {
+                if (w.granted) {
+                    // Hand back the reservation granted in the meantime.
+                    used -= w.bytes;
+                } else {
+                    waiting.remove(w);
+                }
+
+                tasks = admit();
+            }
+        }
+
+        start(tasks);
+        throw new InterruptedException("Interrupted while waiting for budget");
+    }
+
+    /**
+     * Reserve bytes for data that has already arrived, regardless of the
+     * budget. The caller must call {@link #release(long)} when done.
+     *
+     * @param bytes the number of bytes to reserve.
+     */
+    public synchronized void charge(long bytes) {
+        if (limit > 0) {
+            reserve(bytes);
+        }
+    }
+
+    /**
+     * Wait until the budget is no longer exhausted. This is used to stop
+     * accepting new data while the data already accepted is being stored.
+     *
+     * @throws InterruptedException if the thread was interrupted while waiting.
+     */
+    public synchronized void awaitRoom() throws InterruptedException {
+        while (limit > 0 && used >= limit) {
+            wait();
+        }
+    }
+
+    /**
+     * Release a reservation, and start the waiting tasks that now fit.
+     *
+     * @param bytes the number of bytes to release.
+     */
+    public void release(long bytes) {
+        if (limit <= 0) {
+            return;
+        }
+
+        ArrayList<Runnable> tasks;
+
+        synchronized (this) {
+            used -= bytes;
+            tasks = admit();
+        }
+
+        start(tasks);
+    }
+
+    public synchronized String toString() {
+        if (limit <= 0) {
+            return "ByteBudget: unlimited";
+        }
+
+        return "ByteBudget: limit " + limit + " bytes, peak " + peak + " bytes, "
+                + deferred + " reservations deferred";
+    }
+}
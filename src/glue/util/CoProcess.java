@@ -0,0 +1,280 @@
+package glue.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * A persistent worker process that executes many jobs, so the cost of
+ * starting the executable is paid once instead of once per job.
+ *
+ * The worker reads one request per line on its standard input, and answers
+ * each with a line "done STATUS" on its standard output. Any other lines it
+ * prints before the answer are returned as the output of the request. Its
+ * standard error is copied to the standard error of this process. When its
+ * standard input is closed, the worker should exit.
+ *
+ * The worker is started on the first request. If it crashes, the request it
+ * was executing fails, and a new worker is started for the next request. The
+ * worker is also replaced after a number of requests, or when its resident
+ * memory exceeds a limit, to contain leaks. If a request takes longer than
+ * the timeout, the worker is killed, so a hanging worker cannot block its
+ * caller forever.
+ */
+public class CoProcess {
+
+    /** Kills workers whose request exceeds the timeout */
+    private static final Timer watchdog = new Timer("CoProcess watchdog", true);
+
+    /** The command that starts the worker */
+    private final String[] command;
+
+    /** The number of requests after which the worker is replaced, or 0 if unlimited */
+    private final int maxRequests;
+
+    /** The resident memory in bytes above which the worker is replaced, or 0 if unlimited */
+    private final long maxMemory;
+
+    /** The time in milliseconds a request may take before the worker is killed, or 0 if unlimited */
+    private final long timeout;
+
+    /** The running worker, or null if it is not running */
+    private Process process;
+
+    /** The standard input of the worker */
+    private OutputStream in;
+
+    /** The standard output of the worker */
+    private BufferedReader out;
+
+    /** The thread copying the standard error of the worker */
+    private RedirectStream err;
+
+    /** The process ID of the worker, or -1 if unknown */
+    private int pid;
+
+    /** The number of requests handled by the current worker */
+    private int requests = 0;
+
+    /** Statistics */
+    private int started = 0;
+    private int crashed = 0;
+    private int recycled = 0;
+    private int timedOut = 0;
+
+    /**
+     * Constructor to create a CoProcess. The worker is started on the first request.
+     *
+     * @param command the command that starts the worker.
+     * @param maxRequests the number of requests after which the worker is replaced, or 0 if unlimited.
+     * @param maxMemory the resident memory in bytes above which the worker is replaced, or 0 if unlimited.
+     * @param timeout the time in milliseconds a request may take before the worker is killed, or 0 if unlimited.
+     */
+    public CoProcess(String[] command, int maxRequests, long maxMemory, long timeout) {
+        this.command = command;
+        this.maxRequests = maxRequests;
+        this.maxMemory = maxMemory;
+        this.timeout = timeout;
+    }
+
+    /** @return the command that starts the worker. */
+    public String[] command() {
+        return command;
+    }
+
+    /**
+     * Start the worker.
+     *
+     * @throws IOException if the worker could not be started.
+     */
+    private void start() throws IOException {
+        System.out.println("Starting worker " + Arrays.toString(command));
+
+        process = new ProcessBuilder(command).start();
+        in = process.getOutputStream();
+        out = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        err = new RedirectStream(process.getErrorStream(), System.err);
+        err.start();
+
+        pid = pid(process);
+        requests = 0;
+        started++;
+    }
+
+    /**
+     * Execute a request on the worker, starting it if needed.
+     *
+     * @param request the request, which must not contain a newline.
+     * @param output receives the other lines the worker prints before its answer.
+     * @return the status returned by the worker.
+     * @throws IOException if the request contains a newline, or the worker crashed, answered incorrectly, or exceeded the timeout.
+     */
+    public synchronized int call(String request, StringBuilder output) throws IOException {
+        if (request.indexOf('\n') >= 0 || request.indexOf('\r') >= 0) {
+            throw new IOException("Request contains a newline: " + request);
+        }
+
+        if (process == null) {
+            start();
+        }
+
+        // Killing the worker ends the output, which ends the read below.
+        TimerTask kill = null;
+
+        if (timeout > 0) {
+            final Process p = process;
+
+            kill = new TimerTask() {
+                public void run() {
+                    p.destroy();
+                }
+            };
+
+            watchdog.schedule(kill, timeout);
+        }
+
+        String line;
+
+        try {
+            in.write((request + "\n").getBytes());
+            in.flush();
+
+            line = out.readLine();
+
+            while (line != null && !line.startsWith("done ")) {
+                output.append(line).append('\n');
+                line = out.readLine();
+            }
+        } catch (IOException e) {
+            line = null;
+        }
+
+        // If the watchdog could not be cancelled, it has killed the worker.
+        boolean killed = kill != null && !kill.cancel();
+
+        if (line == null || killed) {
+            stop();
+        }
+
+        if (line == null && killed) {
+            timedOut++;
+            throw new IOException("Worker " + Arrays.toString(command) 
+                    + " exceeded the timeout of " + timeout + " ms");
+        }
+
+        if (line == null) {
+            crashed++;
+            throw new IOException("Worker " + Arrays.toString(command) + " exited");
+        }
+
+        int status;
+
+        try {
+            status = Integer.parseInt(line.substring(4).trim());
+        } catch (NumberFormatException e) {
+            crashed++;
+            stop();
+            throw new IOException("Worker gave invalid answer: " + line);
+        }
+
+        requests++;
+
+        if (process != null && ((maxRequests > 0 && requests >= maxRequests)
+                || (maxMemory > 0 && memory() > maxMemory))) {
+            recycled++;
+            stop();
+        }
+
+        return status;
+    }
+
+    /**
+     * Returns the resident memory of the worker.
+     *
+     * @return the resident memory in bytes, or 0 if unknown.
+     */
+    private long memory() {
+        if (pid < 0) {
+            return 0;
+        }
+
+        BufferedReader r = null;
+
+        try {
+            r = new BufferedReader(new FileReader(new File("/proc/" + pid + "/status")));
+
+            String line = r.readLine();
+
+            while (line != null) {
+                if (line.startsWith("VmRSS:")) {
+                    String[] tmp = line.substring(6).trim().split("\\s+");
+                    return Long.parseLong(tmp[0]) * 1024;
+                }
+
+                line = r.readLine();
+            }
+        } catch (Exception e) {
+            // unknown
+        } finally {
+            FileUtils.close(r);
+        }
+
+        return 0;
+    }
+
+    /**
+     * Returns the process ID of a process, which is not part of the Process
+     * API before Java 9.
+     *
+     * @param p the process.
+     * @return the process ID, or -1 if unknown.
+     */
+    static int pid(Process p) {
+        try {
+            return ((Long) Process.class.getMethod("pid").invoke(p)).intValue();
+        } catch (Exception e) {
+            // not available before Java 9
+        }
+
+        try {
+            Field f = p.getClass().getDeclaredField("pid");
+            f.setAccessible(true);
+            return f.getInt(p);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /** Stop the worker, if it is running. Closing its input tells it to exit. */
+    public synchronized void stop() {
+        if (process == null) {
+            return;
+        }
+
+        FileUtils.close(in);
+        process.destroy();
+
+        try {
+            process.waitFor();
+        } catch (InterruptedException e) {
+            // ignored
+        }
+
+        err.waitUntilDone();
+        FileUtils.close(out);
+
+        process = null;
+    }
+
+    public synchronized String toString() {
+        return "CoProcess " + Arrays.toString(command) + ": started " + started
+                + ", crashed " + crashed + ", timed out " + timedOut + ", recycled " + recycled;
+    }
+}
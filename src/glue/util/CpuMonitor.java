@@ -0,0 +1,277 @@
+package glue.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Measures the CPU utilization of this node, taking cgroup CPU quotas into
+ * account.
+ *
+ * If the process runs in a cgroup with a CPU quota (cpu.max in cgroup v2,
+ * or cpu.cfs_quota_us and cpu.cfs_period_us in cgroup v1), the number of
+ * CPUs available is the quota divided by the period, and the utilization is
+ * the CPU time used by the cgroup relative to that. Otherwise the utilization
+ * is the busy time of all CPUs, as reported in /proc/stat.
+ */
+public class CpuMonitor {
+
+    /** Root of the cgroup file system */
+    static final String CGROUP = "/sys/fs/cgroup";
+
+    /** The number of CPUs allowed by the cgroup quota, or 0 if there is no quota */
+    private final double quota;
+
+    /** The cgroup file with the CPU time used, or null if /proc/stat is used */
+    private final File usageFile;
+
+    /** The start of the measurements, as returned by System.nanoTime() */
+    private final long base = System.nanoTime();
+
+    /** The CPU time used and available at the previous measurement */
+    private long lastUsed = -1;
+    private long lastTotal = -1;
+
+    /** Constructor to create a CpuMonitor for the cgroup of this process */
+    public CpuMonitor() {
+        ArrayList<String> dirs = cgroupDirs();
+
+        double q = 0;
+        File usage = null;
+
+        for (String dir : dirs) {
+            if (q == 0) {
+                q = readQuota(dir);
+            }
+
+            if (usage == null) {
+                File f = new File(dir, "cpu.stat");
+
+                if (new File(dir, "cpu.max").exists() && f.exists()) {
+                    usage = f;
+                } else if (new File(dir, "cpuacct.usage").exists()) {
+                    usage = new File(dir, "cpuacct.usage");
+                }
+            }
+        }
+
+        this.quota = q;
+        this.usageFile = q > 0 ? usage : null;
+
+        // Start the first measurement interval.
+        utilization();
+    }
+
+    /**
+     * Returns the cgroup directories that may hold the CPU controller of this
+     * process, most specific first.
+     *
+     * @return the directories.
+     */
+    static ArrayList<String> cgroupDirs() {
+        ArrayList<String> dirs = new ArrayList<String>();
+
+        try {
+            String cgroups = readString(new File("/proc/self/cgroup"));
+
+            if (cgroups == null) {
+                throw new IOException("No cgroups");
+            }
+
+            for (String line : cgroups.split("\n")) {
+                // Lines are formatted as "ID:controllers:path".
+                String[] tmp = line.split(":", 3);
+
+                if (tmp.length < 3) {
+                    continue;
+                }
+
+                if (tmp[1].length() == 0) {
+                    dirs.add(CGROUP + tmp[2]);
+                    dirs.add(CGROUP + "/unified" + tmp[2]);
+                } else if (("," + tmp[1] + ",").contains(",cpu,")
+                        || ("," + tmp[1] + ",").contains(",cpuacct,")) {
+                    dirs.add(CGROUP + "/" + tmp[1] + tmp[2]);
+                }
+            }
+        } catch (IOException e) {
+            // not on Linux
+        }
+
+        // Inside a container, the cgroup of the process is the root.
+        dirs.add(CGROUP);
+        dirs.add(CGROUP + "/cpu");
+        dirs.add(CGROUP + "/cpuacct");
+        dirs.add(CGROUP + "/cpu,cpuacct");
+
+        return dirs;
+    }
+
+    /**
+     * Read a file into a trimmed string. The files in /proc and /sys report
+     * a size of 0, so they are read line by line.
+     *
+     * @param file the file.
+     * @return the content, or null if it could not be read.
+     */
+    static String readString(File file) {
+        BufferedReader r = null;
+
+        try {
+            r = new BufferedReader(new FileReader(file));
+
+            StringBuilder sb = new StringBuilder();
+            String line = r.readLine();
+
+            while (line != null) {
+                sb.append(line).append('\n');
+                line = r.readLine();
+            }
+
+            return sb.toString().trim();
+        } catch (IOException e) {
+            return null;
+        } finally {
+            FileUtils.close(r);
+        }
+    }
+
+    /**
+     * Reads the CPU quota of a cgroup directory.
+     *
+     * @param dir the directory.
+     * @return the number of CPUs allowed, or 0 if there is no quota.
+     */
+    static double readQuota(String dir) {
+        try {
+            String max = readString(new File(dir, "cpu.max"));
+
+            if (max != null) {
+                // Formatted as "quota period", where quota may be "max".
+                String[] tmp = max.split("\\s+");
+
+                if (tmp[0].equals("max")) {
+                    return 0;
+                }
+
+                return Double.parseDouble(tmp[0]) / Double.parseDouble(tmp[1]);
+            }
+
+            String q = readString(new File(dir, "cpu.cfs_quota_us"));
+            String p = readString(new File(dir, "cpu.cfs_period_us"));
+
+            if (q != null && p != null && Long.parseLong(q) > 0) {
+                return Double.parseDouble(q) / Double.parseDouble(p);
+            }
+        } catch (Exception e) {
+            // no usable quota
+        }
+
+        return 0;
+    }
+
+    /**
+     * Returns the CPU time used so far, in nanoseconds for a cgroup or in
+     * clock ticks for /proc/stat.
+     *
+     * @param times receives the time used and the time available.
+     * @return if the times could be read.
+     */
+    private boolean readTimes(long[] times) {
+        try {
+            if (usageFile != null) {
+                String s = readString(usageFile);
+                long used = -1;
+
+                if (usageFile.getName().equals("cpu.stat")) {
+                    for (String line : s.split("\n")) {
+                        if (line.startsWith("usage_usec ")) {
+                            used = Long.parseLong(line.substring(11).trim()) * 1000;
+                        }
+                    }
+                } else {
+                    used = Long.parseLong(s);
+                }
+
+                if (used < 0) {
+                    return false;
+                }
+
+                times[0] = used;
+                times[1] = (long) ((System.nanoTime() - base) * quota);
+                return true;
+            }
+
+            // The first line holds the ticks of all CPUs: "cpu user nice
+            // system idle iowait irq softirq steal ...".
+            String line = readString(new File("/proc/stat")).split("\n")[0];
+            String[] tmp = line.trim().split("\\s+");
+
+            long total = 0;
+
+            for (int i = 1; i < tmp.length && i <= 8; i++) {
+                total += Long.parseLong(tmp[i]);
+            }
+
+            long idle = Long.parseLong(tmp[4]) + (tmp.length > 5 ? Long.parseLong(tmp[5]) : 0);
+
+            times[0] = total - idle;
+            times[1] = total;
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the CPU utilization since the previous call.
+     *
+     * @return the fraction of the available CPU time that was used, or -1 if unknown.
+     */
+    public synchronized double utilization() {
+        long[] times = new long[2];
+
+        if (!readTimes(times)) {
+            return -1;
+        }
+
+        double result = -1;
+
+        if (lastTotal >= 0 && times[1] > lastTotal) {
+            result = (double) (times[0] - lastUsed) / (times[1] - lastTotal);
+        }
+
+        lastUsed = times[0];
+        lastTotal = times[1];
+        return result;
+    }
+
+    /** @return the number of CPUs allowed by the cgroup quota, or 0 if there is no quota. */
+    public double quota() {
+        return quota;
+    }
+
+    /**
+     * Returns the number of CPUs this process can use: the cgroup quota,
+     * rounded up, if it is lower than the number of processors.
+     *
+     * @return the number of CPUs.
+     */
+    public int cpus() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+
+        if (quota > 0) {
+            cpus = Math.min(cpus, (int) Math.ceil(quota));
+        }
+
+        return Math.max(1, cpus);
+    }
+
+    public String toString() {
+        return "CpuMonitor: " + cpus() + " cpus, quota "
+                + (quota > 0 ? String.format("%.2f", quota) : "none")
+                + (usageFile != null ? ", usage from " + usageFile : ", usage from /proc/stat");
+    }
+}
@@ -0,0 +1,449 @@
+package glue.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import ibis.ipl.ReadMessage;
+import ibis.ipl.WriteMessage;
+
+/**
+ * Streams files through Ibis messages in fixed-size chunks, so the memory
+ * used by a transfer does not depend on the size of the file. A file is sent
+ * as its length (-1 if there is no file) followed by its content.
+ *
+ * Files are accessed through file channels and pooled direct buffers, and
+ * large files are sent from memory-mapped windows, so their content is not
+ * copied through the Java heap. Both sides always transfer the content in 
+ * chunks of CHUNK_SIZE bytes, as data serialization requires the receiver to 
+ * read the data in the same pieces as it was written.
+ */
+public class FileTransfer {
+
+    /** Size of the chunks in which files are transferred */
+    public static final int CHUNK_SIZE = FileUtils.BUFFER_SIZE;
+
+    /** Files of at least this size are sent from a memory mapping */
+    public static final long MAP_THRESHOLD = 1024 * 1024;
+
+    /** Size of the part of a file that is mapped at once */
+    public static final long MAP_WINDOW = 64 * 1024 * 1024;
+
+    /** Threads writing received chunks to disk while the next chunk is received */
+    private static final ExecutorService writers =
+            Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "FileTransfer writer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /**
+     * Send a file.
+     *
+     * @param wm the message to write to.
+     * @param file the file to send, or null to indicate there is no file.
+     * @return the number of bytes sent, or -1 if there is no file.
+     * @throws IOException if the file could not be read or sent.
+     */
+    public static long send(WriteMessage wm, File file) throws IOException {
+        if (file == null) {
+            wm.writeLong(-1);
+            return -1;
+        }
+
+        FileChannel in = new FileInputStream(file).getChannel();
+
+        try {
+            long length = in.size();
+            wm.writeLong(length);
+
+            if (length >= MAP_THRESHOLD) {
+                sendMapped(wm, in, length);
+            } else if (length > 0) {
+                sendBuffered(wm, in, length);
+            }
+
+            return length;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Send data held in memory in the same format as a file, so it can be 
+     * received with any of the receive methods.
+     *
+     * @param wm the message to write to.
+     * @param data the data to send, or null to indicate there is no file.
+     * @return the number of bytes sent, or -1 if there is no file.
+     * @throws IOException if the data could not be sent.
+     */
+    public static long send(WriteMessage wm, byte[] data) throws IOException {
+        if (data == null) {
+            wm.writeLong(-1);
+            return -1;
+        }
+
+        wm.writeLong(data.length);
+
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+
+        while (buffer.hasRemaining()) {
+            ByteBuffer chunk = buffer.slice();
+            chunk.limit(Math.min(CHUNK_SIZE, chunk.remaining()));
+            wm.writeByteBuffer(chunk);
+            buffer.position(buffer.position() + chunk.limit());
+        }
+
+        return data.length;
+    }
+
+    /**
+     * Send the content of a file from memory-mapped windows.
+     *
+     * @param wm the message to write to.
+     * @param in the file to send.
+     * @param length the number of bytes to send.
+     * @throws IOException if the file could not be read or sent.
+     */
+    private static void sendMapped(WriteMessage wm, FileChannel in, long length)
+            throws IOException {
+
+        long position = 0;
+
+        while (position < length) {
+            long n = Math.min(MAP_WINDOW, length - position);
+            ByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, position, n);
+
+            // The window is written in chunks, to match the receiver.
+            while (window.hasRemaining()) {
+                ByteBuffer chunk = window.slice();
+                chunk.limit(Math.min(CHUNK_SIZE, chunk.remaining()));
+                wm.writeByteBuffer(chunk);
+                window.position(window.position() + chunk.limit());
+            }
+
+            // The message may keep a reference to the buffer until it is
+            // flushed, so flush before the mapping is dropped.
+            wm.flush();
+            position += n;
+        }
+    }
+
+    /**
+     * Send the content of a file through a pooled direct buffer.
+     *
+     * @param wm the message to write to.
+     * @param in the file to send.
+     * @param length the number of bytes to send.
+     * @throws IOException if the file could not be read or sent.
+     */
+    private static void sendBuffered(WriteMessage wm, FileChannel in, long length)
+            throws IOException {
+
+        ByteBuffer buffer = BufferPool.direct.get(CHUNK_SIZE);
+
+        try {
+            long remaining = length;
+
+            while (remaining > 0) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), remaining));
+
+                while (buffer.hasRemaining()) {
+                    if (in.read(buffer) == -1) {
+                        throw new EOFException("File shrunk while sending");
+                    }
+                }
+
+                buffer.flip();
+                remaining -= buffer.remaining();
+                wm.writeByteBuffer(buffer);
+
+                // The message may keep a reference to the buffer until it is
+                // flushed, so flush before the buffer is reused.
+                wm.flush();
+            }
+        } finally {
+            BufferPool.direct.release(buffer);
+        }
+    }
+
+    /**
+     * Receive a file sent with {@link #send(WriteMessage, File)}.
+     *
+     * @param rm the message to read from.
+     * @param file the file to store the content in. It is not created if no file was sent.
+     * @return the number of bytes received, or -1 if no file was sent.
+     * @throws IOException if the file could not be received or written.
+     */
+    public static long receive(ReadMessage rm, File file) throws IOException {
+        long length = rm.readLong();
+
+        if (length >= 0) {
+            receive(rm, length, file);
+        }
+
+        return length;
+    }
+
+    /**
+     * Receive a file sent with {@link #send(WriteMessage, File)} into memory.
+     *
+     * @param rm the message to read from.
+     * @return the content of the file, or null if no file was sent.
+     * @throws IOException if the file could not be received, or is too large to keep in memory.
+     */
+    public static byte[] receiveBytes(ReadMessage rm) throws IOException {
+        long length = rm.readLong();
+
+        if (length < 0) {
+            return null;
+        }
+
+        if (length > Integer.MAX_VALUE) {
+            skip(rm, length);
+            throw new IOException("File too large to receive into memory: " + length);
+        }
+
+        byte[] data = new byte[(int) length];
+
+        // Ibis reads heap buffers that are not fully buffered at their array 
+        // offset, ignoring their position, so the chunks are received in a 
+        // direct buffer and copied.
+        ByteBuffer buffer = BufferPool.direct.get(CHUNK_SIZE);
+
+        try {
+            int offset = 0;
+
+            while (offset < data.length) {
+                buffer.clear();
+                buffer.limit(Math.min(CHUNK_SIZE, data.length - offset));
+                rm.readByteBuffer(buffer);
+                buffer.flip();
+
+                int n = buffer.remaining();
+                buffer.get(data, offset, n);
+                offset += n;
+            }
+        } finally {
+            BufferPool.direct.release(buffer);
+        }
+
+        return data;
+    }
+
+    /**
+     * Receive a file sent with {@link #send(WriteMessage, File)} into a new
+     * temporary file.
+     *
+     * @param rm the message to read from.
+     * @param dir the directory to create the temporary file in.
+     * @param prefix the prefix of the name of the temporary file.
+     * @return the temporary file, or null if no file was sent.
+     * @throws IOException if the file could not be received or written.
+     */
+    public static File receiveTemporary(ReadMessage rm, File dir, String prefix)
+            throws IOException {
+        long length = rm.readLong();
+
+        if (length < 0) {
+            return null;
+        }
+
+        File file = null;
+
+        try {
+            file = File.createTempFile(prefix, ".part", dir);
+        } catch (IOException e) {
+            // Still read the content, so the message can be finished.
+            skip(rm, length);
+            throw e;
+        }
+
+        receive(rm, length, file);
+        return file;
+    }
+
+    /**
+     * Read and discard the remaining content of a file.
+     *
+     * @param rm the message to read from.
+     * @param length the number of bytes to skip.
+     * @throws IOException if the message could not be read.
+     */
+    private static void skip(ReadMessage rm, long length) throws IOException {
+        ByteBuffer buffer = BufferPool.direct.get(CHUNK_SIZE);
+
+        try {
+            while (length > 0) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), length));
+                rm.readByteBuffer(buffer);
+                length -= buffer.limit();
+            }
+        } finally {
+            BufferPool.direct.release(buffer);
+        }
+    }
+
+    /**
+     * Write a chunk to a file.
+     *
+     * @param out the file to write to.
+     * @param buffer the chunk, ready to be written.
+     * @return the pending write.
+     */
+    private static Future<Object> write(final FileChannel out, final ByteBuffer buffer) {
+        return writers.submit(new Callable<Object>() {
+            public Object call() throws IOException {
+                writeFully(out, buffer);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Write all remaining bytes of a buffer to a file.
+     *
+     * @param out the file to write to.
+     * @param buffer the buffer to write.
+     * @throws IOException if the write failed.
+     */
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * Wait for a pending write to finish.
+     *
+     * @param pending the pending write, or null.
+     * @throws IOException if the write failed.
+     */
+    private static void await(Future<Object> pending) throws IOException {
+        if (pending == null) {
+            return;
+        }
+
+        try {
+            pending.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+
+            throw new IOException("Write failed: " + e.getCause());
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while writing");
+        }
+    }
+
+    /**
+     * Receive the content of a file. Two direct buffers are used, so one chunk
+     * is written to disk while the next is received. If writing fails, the
+     * rest of the content is still read, so the message can be finished.
+     *
+     * @param rm the message to read from.
+     * @param length the length of the file.
+     * @param file the file to store the content in.
+     * @throws IOException if the file could not be received or written.
+     */
+    private static void receive(ReadMessage rm, long length, File file)
+            throws IOException {
+
+        FileChannel out = null;
+        IOException error = null;
+
+        try {
+            out = new FileOutputStream(file).getChannel();
+        } catch (IOException e) {
+            error = e;
+        }
+
+        ByteBuffer current = BufferPool.direct.get(CHUNK_SIZE);
+        ByteBuffer spare = length > current.capacity() ? BufferPool.direct.get(CHUNK_SIZE) : null;
+        Future<Object> pending = null;
+
+        long remaining = length;
+
+        try {
+            while (remaining > 0) {
+                current.clear();
+                current.limit((int) Math.min(current.capacity(), remaining));
+                rm.readByteBuffer(current);
+                current.flip();
+                remaining -= current.remaining();
+
+                if (error != null) {
+                    continue;
+                }
+
+                try {
+                    await(pending);
+                    pending = null;
+                } catch (IOException e) {
+                    error = e;
+                    continue;
+                }
+
+                if (spare == null) {
+                    // Small files are written directly.
+                    try {
+                        writeFully(out, current);
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                } else {
+                    pending = write(out, current);
+
+                    ByteBuffer tmp = current;
+                    current = spare;
+                    spare = tmp;
+                }
+            }
+
+            if (error == null) {
+                try {
+                    await(pending);
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+        } finally {
+            // Never close the file or reuse a buffer while a chunk is still being written.
+            if (pending != null && !pending.isDone()) {
+                try {
+                    await(pending);
+                } catch (IOException e) {
+                    // already failed
+                }
+            }
+
+            if (out != null) {
+                out.close();
+            }
+
+            BufferPool.direct.release(current);
+            BufferPool.direct.release(spare);
+        }
+
+        if (error != null) {
+            file.delete();
+            throw error;
+        }
+    }
+}
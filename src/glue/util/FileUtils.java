@@ -1,14 +1,21 @@
 package glue.util;
 
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 public class FileUtils {
 
+    /** Size of the buffers used to copy and transfer files */
+    public static final int BUFFER_SIZE = 64 * 1024;
+
     /** 
      * Read a file into a byte array. 
      * 
@@ -22,30 +29,33 @@ public class FileUtils {
 
         if (tmp.exists() && tmp.canRead() && tmp.isFile()) {
 
-            byte[] buffer = new byte[(int) tmp.length()];
+            FileChannel in = new FileInputStream(tmp).getChannel();
 
-            FileInputStream f = new FileInputStream(tmp);
+            try { 
+                long size = in.size();
 
-            int offset = 0;
-            int read = 0;
+                if (size > Integer.MAX_VALUE) { 
+                    throw new IOException("File too large to read into memory: " + file);
+                }
 
-            while (offset < buffer.length) {
-                read = f.read(buffer, offset, buffer.length - offset);
+                byte[] data = new byte[(int) size];
+                ByteBuffer buffer = ByteBuffer.wrap(data);
 
-                if (read == -1) {
-                    throw new FileNotFoundException("Cannot read " + file);
+                while (buffer.hasRemaining()) {
+                    if (in.read(buffer) == -1) {
+                        throw new FileNotFoundException("Cannot read " + file);
+                    }
                 }
 
-                offset += read;
+                return data;
+            } finally { 
+                in.close();
             }
-
-            return buffer;
         }
 
         throw new FileNotFoundException("Cannot access " + file);
     }
 
-     
     /**
      * Write a byte array into a file.
      *  
@@ -54,9 +64,81 @@ public class FileUtils {
      * @throws IOException if the file could not be written.
      */    
     public static void write(String file, byte[] data) throws IOException {
-        FileOutputStream out = new FileOutputStream(new File(file));
-        out.write(data);
-        out.close();
+        FileChannel out = new FileOutputStream(new File(file)).getChannel();
+
+        try { 
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+
+            while (buffer.hasRemaining()) { 
+                out.write(buffer);
+            }
+        } finally { 
+            out.close();
+        }
+    }
+
+    /**
+     * Copy (a part of) a file to a channel. Depending on the platform, the 
+     * data may be copied by the operating system without passing through 
+     * the JVM.
+     * 
+     * @param file the file to copy.
+     * @param position the position in the file at which to start.
+     * @param count the number of bytes to copy.
+     * @param target the channel to copy to.
+     * @throws IOException if the copy failed.
+     */
+    public static void transferTo(File file, long position, long count, 
+            WritableByteChannel target) throws IOException {
+
+        FileChannel in = new FileInputStream(file).getChannel();
+
+        try { 
+            while (count > 0) { 
+                long n = in.transferTo(position, count, target);
+
+                if (n <= 0) { 
+                    throw new EOFException("Cannot read " + file);
+                }
+
+                position += n;
+                count -= n;
+            }
+        } finally { 
+            in.close();
+        }
+    }
+
+    /**
+     * Move a file. If it cannot be renamed (for example, because the target 
+     * is on another file system) it is copied and then deleted. If the copy 
+     * fails, the target is removed and the source is kept.
+     * 
+     * @param source the file to move.
+     * @param target the new location of the file.
+     * @throws IOException if the file could not be moved.
+     */
+    public static void move(File source, File target) throws IOException {
+        if (source.renameTo(target)) {
+            return;
+        }
+
+        FileChannel out = new FileOutputStream(target).getChannel();
+        boolean copied = false;
+
+        try { 
+            transferTo(source, 0, source.length(), out);
+            out.close();
+            copied = true;
+        } finally { 
+            if (!copied) { 
+                // Do not leave a partial copy behind.
+                close(out);
+                target.delete();
+            }
+        }
+
+        source.delete();
     }
 
     /**
@@ -0,0 +1,603 @@
+package glue.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executes processes without starting threads for them.
+ *
+ * The standard streams of a process can be redirected to and from files,
+ * in which case the operating system copies the data (through a /bin/sh
+ * wrapper, as ProcessBuilder.Redirect requires Java 7). The output streams
+ * can also be redirected to an OutputStream, in which case they are copied
+ * by a small fixed set of pump threads shared by all processes. A pump only
+ * reads data that is already available, so it never blocks on a process and
+ * can serve many processes with a single large buffer. An input in memory
+ * is written by the thread that starts the process.
+ *
+ * The pumps also detect when a process exits or exceeds its timeout, so the
+ * number of threads does not grow with the number of running processes.
+ */
+public class ProcessExecutor {
+
+    /** The number of pump threads of the common executor */
+    public static final int PUMPS = 2;
+
+    /** Size of the buffer used by each pump */
+    public static final int BUFFER_SIZE = 256 * 1024;
+
+    /** 
+     * Time in milliseconds a pump waits when none of its processes made 
+     * progress. The wait is doubled each time no progress is made, up to the 
+     * maximum, so idle long-running processes are polled less often. 
+     */
+    static final long POLL_INTERVAL = 2;
+
+    /** Maximum time in milliseconds a pump waits when none of its processes made progress */
+    static final long MAX_POLL_INTERVAL = 50;
+
+    /** Maximum number of buffers copied from one stream before a pump moves to the next */
+    static final int MAX_READS = 4;
+
+    /** Executor shared by all users in this JVM */
+    public static final ProcessExecutor common = new ProcessExecutor(PUMPS);
+
+    /**
+     * The source or destination of a standard stream of a process, like
+     * ProcessBuilder.Redirect in Java 7.
+     */
+    public static class Redirect {
+
+        /** The file to redirect to or from, or null */
+        final File file;
+
+        /** The input in memory, or null */
+        final byte[] data;
+
+        /** The stream the output is copied to, or null */
+        final OutputStream stream;
+
+        private Redirect(File file, byte[] data, OutputStream stream) {
+            this.file = file;
+            this.data = data;
+            this.stream = stream;
+        }
+
+        /** @return a redirect of the input from a file. */
+        public static Redirect from(File file) {
+            return new Redirect(file, null, null);
+        }
+
+        /** @return a redirect of the input from memory. */
+        public static Redirect from(byte[] data) {
+            return new Redirect(null, data, null);
+        }
+
+        /** @return a redirect of the output to a file. */
+        public static Redirect to(File file) {
+            return new Redirect(file, null, null);
+        }
+
+        /** @return a redirect of the output to a stream, which is copied by the pumps. */
+        public static Redirect to(OutputStream stream) {
+            return new Redirect(null, null, stream);
+        }
+    }
+
+    /**
+     * A running process. It can be used as a Future of the exit status of
+     * the process, and reports its termination to a ProcessRunnerCallBack.
+     */
+    public class Execution implements Future<Integer> {
+
+        private final int ID;
+        private final Object info;
+        private final ProcessRunnerCallBack callback;
+
+        private Process process;
+
+        /** The stdout and stderr of the process if they are pumped, or null */
+        private InputStream out;
+        private InputStream err;
+
+        /** The destinations of the pumped streams */
+        private OutputStream outDest;
+        private OutputStream errDest;
+
+        private final long startTime = System.currentTimeMillis();
+
+        /** The time at which the process is killed, or 0 if it has no timeout */
+        private final long deadline;
+
+        /** Set once the pump has seen the process exit */
+        private boolean exited = false;
+
+        private int status = -1;
+        private long time = 0;
+        private IOException failure;
+
+        private boolean done = false;
+        private boolean cancelled = false;
+        private boolean timedOut = false;
+
+        Execution(int ID, Object info, long timeout, ProcessRunnerCallBack callback) {
+            this.ID = ID;
+            this.info = info;
+            this.callback = callback;
+            this.deadline = timeout > 0 ? startTime + timeout : 0;
+        }
+
+        /**
+         * Copy the data available on a stream, without blocking.
+         *
+         * @param source the stream to read from, or null.
+         * @param destination the stream to write to.
+         * @param buffer the buffer to copy with.
+         * @return if any data was copied.
+         */
+        private boolean copy(InputStream source, OutputStream destination, byte[] buffer) {
+            if (source == null) {
+                return false;
+            }
+
+            boolean moved = false;
+
+            try {
+                for (int i = 0; i < MAX_READS; i++) {
+                    int available = source.available();
+
+                    if (available <= 0) {
+                        break;
+                    }
+
+                    int bytes = source.read(buffer, 0, Math.min(available, buffer.length));
+
+                    if (bytes <= 0) {
+                        break;
+                    }
+
+                    destination.write(buffer, 0, bytes);
+                    moved = true;
+                }
+            } catch (IOException e) {
+                // The stream is closed, so there is nothing left to copy.
+            }
+
+            return moved;
+        }
+
+        /**
+         * Copy the available output of the process, and check if it exited or
+         * timed out. Called by the pump only.
+         *
+         * @param buffer the buffer to copy with.
+         * @return if any progress was made.
+         */
+        boolean pump(byte[] buffer) {
+            // Check for exit first, so all output written before the exit
+            // is available to the copy below.
+            boolean exitSeen = exited;
+
+            if (!exited) {
+                try {
+                    status = process.exitValue();
+                    exited = true;
+                } catch (IllegalThreadStateException e) {
+                    // still running
+                }
+            }
+
+            boolean moved = copy(out, outDest, buffer);
+            moved |= copy(err, errDest, buffer);
+
+            if (!exited && deadline > 0 && System.currentTimeMillis() > deadline) {
+                synchronized (this) {
+                    timedOut = true;
+                }
+                process.destroy();
+            }
+
+            if (exitSeen && !moved) {
+                finish(timedOut() ? "timeout" : (isCancelled() ? "cancelled" : "done"));
+                return true;
+            }
+
+            return moved || exited != exitSeen;
+        }
+
+        /**
+         * Mark the execution as done, and report it to the callback.
+         *
+         * @param message the message for the callback.
+         */
+        private void finish(String message) {
+            if (process != null) {
+                FileUtils.close(process.getInputStream());
+                FileUtils.close(process.getErrorStream());
+                FileUtils.close(process.getOutputStream());
+            }
+
+            synchronized (this) {
+                time = System.currentTimeMillis() - startTime;
+                done = true;
+                notifyAll();
+            }
+
+            running.decrementAndGet();
+            finished.incrementAndGet();
+
+            if (callback != null) {
+                callback.processTerminated(ID, info, status, time, message);
+            }
+        }
+
+        /** @return the exception if the process failed to start, or null. */
+        public synchronized IOException failure() {
+            return failure;
+        }
+
+        /** @return if the process was killed because it exceeded its timeout. */
+        public synchronized boolean timedOut() {
+            return timedOut;
+        }
+
+        /** @return the time in milliseconds the process ran, once it is done. */
+        public synchronized long time() {
+            return time;
+        }
+
+        /**
+         * Waits until the process has exited and its output has been copied.
+         *
+         * @return the exit status of the process, or -1 if it failed to start.
+         */
+        public synchronized int waitFor() {
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // ignored
+                }
+            }
+
+            return status;
+        }
+
+        /** Kill the process, if it is still running. */
+        public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+            if (done) {
+                return false;
+            }
+
+            cancelled = true;
+
+            if (process != null) {
+                process.destroy();
+            }
+
+            return true;
+        }
+
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        public synchronized boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Returns the exit status once the process is done.
+         *
+         * @throws CancellationException if the process was cancelled.
+         * @throws ExecutionException if the process failed to start.
+         */
+        private Integer result() throws ExecutionException {
+            if (cancelled) {
+                throw new CancellationException("Process was cancelled");
+            }
+
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+
+            return status;
+        }
+
+        public synchronized Integer get() throws InterruptedException, ExecutionException {
+            while (!done) {
+                wait();
+            }
+
+            return result();
+        }
+
+        public synchronized Integer get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+
+            long end = System.currentTimeMillis() + unit.toMillis(timeout);
+
+            while (!done) {
+                long left = end - System.currentTimeMillis();
+
+                if (left <= 0) {
+                    throw new TimeoutException();
+                }
+
+                wait(left);
+            }
+
+            return result();
+        }
+    }
+
+    /** Thread that copies the output of a share of the processes, and watches them */
+    private class Pump extends Thread {
+
+        /** The executions handed to this pump that it has not picked up yet */
+        final ConcurrentLinkedQueue<Execution> added = new ConcurrentLinkedQueue<Execution>();
+
+        /** The executions this pump is watching */
+        final ArrayList<Execution> active = new ArrayList<Execution>();
+
+        Pump(int i) {
+            super("ProcessExecutor pump " + i);
+            setDaemon(true);
+        }
+
+        /**
+         * Hand an execution to this pump.
+         *
+         * @param e the execution.
+         */
+        void add(Execution e) {
+            added.add(e);
+
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+
+        public void run() {
+            ByteBuffer pooled = BufferPool.heap.get(BUFFER_SIZE);
+            byte[] buffer = pooled.array();
+            long interval = POLL_INTERVAL;
+
+            while (true) {
+                Execution e = added.poll();
+                boolean progress = false;
+
+                while (e != null) {
+                    active.add(e);
+                    e = added.poll();
+                    progress = true;
+                }
+
+                Iterator<Execution> it = active.iterator();
+
+                while (it.hasNext()) {
+                    e = it.next();
+
+                    try {
+                        progress |= e.pump(buffer);
+                    } catch (Throwable t) {
+                        System.err.println("ProcessExecutor pump failed: " + t);
+                        e.finish("pump failed: " + t);
+                    }
+
+                    if (e.isDone()) {
+                        it.remove();
+                    }
+                }
+
+                if (progress) {
+                    interval = POLL_INTERVAL;
+                } else {
+                    synchronized (this) {
+                        try {
+                            if (added.isEmpty()) {
+                                wait(active.isEmpty() ? 0 : interval);
+                            }
+                        } catch (InterruptedException ie) {
+                            // ignored
+                        }
+                    }
+
+                    interval = Math.min(2 * interval, MAX_POLL_INTERVAL);
+                }
+            }
+        }
+    }
+
+    /** The pump threads */
+    private final Pump[] pumps;
+
+    /** The pump the next execution is handed to */
+    private final AtomicInteger next = new AtomicInteger();
+
+    /** Statistics */
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger peak = new AtomicInteger();
+    private final AtomicLong finished = new AtomicLong();
+
+    /**
+     * Constructor to create and start a ProcessExecutor
+     *
+     * @param pumps the number of pump threads.
+     */
+    public ProcessExecutor(int pumps) {
+        this.pumps = new Pump[Math.max(1, pumps)];
+
+        for (int i = 0; i < this.pumps.length; i++) {
+            this.pumps[i] = new Pump(i);
+            this.pumps[i].start();
+        }
+    }
+
+    /**
+     * Returns the command that runs a command with its streams redirected
+     * to and from files by /bin/sh. The file names are passed as arguments
+     * rather than in the script, so they need no quoting.
+     *
+     * @param command the command.
+     * @param in the input redirect, or null.
+     * @param out the output redirect.
+     * @param err the error redirect.
+     * @return the wrapped command, or the command itself if no files are used.
+     */
+    static String[] wrap(String[] command, Redirect in, Redirect out, Redirect err) {
+        ArrayList<String> args = new ArrayList<String>();
+        StringBuilder vars = new StringBuilder();
+        StringBuilder redirects = new StringBuilder();
+
+        if (in != null && in.file != null) {
+            args.add(in.file.getPath());
+            vars.append("i=$" + args.size() + "; ");
+            redirects.append(" <\"$i\"");
+        }
+
+        if (out.file != null) {
+            args.add(out.file.getPath());
+            vars.append("o=$" + args.size() + "; ");
+            redirects.append(" >\"$o\"");
+        }
+
+        if (err.file != null) {
+            args.add(err.file.getPath());
+            vars.append("e=$" + args.size() + "; ");
+            redirects.append(" 2>\"$e\"");
+        }
+
+        if (args.isEmpty()) {
+            return command;
+        }
+
+        String script = vars + "shift " + args.size() + "; exec \"$@\"" + redirects;
+
+        ArrayList<String> result = new ArrayList<String>();
+        result.add("/bin/sh");
+        result.add("-c");
+        result.add(script);
+        result.add("sh");
+        result.addAll(args);
+        result.addAll(Arrays.asList(command));
+
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * Start a process. If its input is in memory, it is written before this
+     * method returns.
+     *
+     * @param ID the ID passed to the callback.
+     * @param info the info passed to the callback.
+     * @param command the command to execute.
+     * @param in the source of stdin, or null for an empty input.
+     * @param out the destination of stdout, or null to discard it.
+     * @param err the destination of stderr, or null to discard it.
+     * @param timeout the time in milliseconds after which the process is killed, or 0 for no timeout.
+     * @param callback called when the process terminates or fails to start, or null.
+     * @return the execution.
+     */
+    public Execution execute(int ID, Object info, String[] command, Redirect in,
+            Redirect out, Redirect err, long timeout, ProcessRunnerCallBack callback) {
+
+        File devNull = new File("/dev/null");
+
+        if (out == null) {
+            out = Redirect.to(devNull);
+        }
+
+        if (err == null) {
+            err = Redirect.to(devNull);
+        }
+
+        Execution e = new Execution(ID, info, timeout, callback);
+
+        synchronized (e) {
+            try {
+                e.process = new ProcessBuilder(wrap(command, in, out, err)).start();
+            } catch (IOException ex) {
+                e.failure = ex;
+            }
+        }
+
+        running.incrementAndGet();
+
+        if (e.failure != null) {
+            e.finish("Failed to start process: " + e.failure);
+            return e;
+        }
+
+        int r = running.get();
+        int max = peak.get();
+
+        while (r > max && !peak.compareAndSet(max, r)) {
+            max = peak.get();
+        }
+
+        if (out.stream != null) {
+            e.out = e.process.getInputStream();
+            e.outDest = out.stream;
+        }
+
+        if (err.stream != null) {
+            e.err = e.process.getErrorStream();
+            e.errDest = err.stream;
+        }
+
+        pumps[(next.getAndIncrement() & Integer.MAX_VALUE) % pumps.length].add(e);
+
+        OutputStream stdin = e.process.getOutputStream();
+
+        try {
+            if (in != null && in.data != null) {
+                stdin.write(in.data);
+            }
+        } catch (IOException ex) {
+            // The process stopped reading its input.
+        } finally {
+            // Closing stdin tells the process the input is complete.
+            FileUtils.close(stdin);
+        }
+
+        return e;
+    }
+
+    /**
+     * Start a process with its stdout and stderr redirected to files, as
+     * done by a ProcessRunner.
+     *
+     * @param ID the ID passed to the callback.
+     * @param info the info passed to the callback.
+     * @param command the command to execute.
+     * @param stdout the file to write stdout to.
+     * @param stderr the file to write stderr to.
+     * @param callback called when the process terminates or fails to start.
+     * @return the execution.
+     */
+    public Execution execute(int ID, Object info, String[] command, String stdout,
+            String stderr, ProcessRunnerCallBack callback) {
+        return execute(ID, info, command, null, Redirect.to(new File(stdout)),
+                Redirect.to(new File(stderr)), 0, callback);
+    }
+
+    public String toString() {
+        return "ProcessExecutor: " + pumps.length + " pumps, " + finished.get()
+                + " processes, " + running.get() + " running (max " + peak.get() + ")";
+    }
+}
@@ -2,6 +2,7 @@ package glue.util;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 public class RedirectStream extends Thread {
     
@@ -9,6 +10,9 @@ public class RedirectStream extends Thread {
     private OutputStream destination;
     
     private boolean done = false;
+
+    /** Size of the buffer used to copy the stream */
+    public static final int BUFFER_SIZE = 64 * 1024;
     
     public RedirectStream(InputStream source, OutputStream destination) {
         this.source = source;
@@ -17,7 +21,9 @@ public class RedirectStream extends Thread {
     }
 
     public void run() { 
-        byte [] buffer = new byte[1024];        
+        // Take the buffer from the pool, as a stream is redirected for every job.
+        ByteBuffer pooled = BufferPool.heap.get(BUFFER_SIZE);
+        byte [] buffer = pooled.array();
         int bytes = 0;
         
         do { 
@@ -31,6 +37,8 @@ public class RedirectStream extends Thread {
                 bytes = -1;
             }
         } while (bytes > 0);
+
+        BufferPool.heap.release(pooled);
         
         synchronized (this) {
             done = true;
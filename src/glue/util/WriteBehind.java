@@ -0,0 +1,320 @@
+package glue.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A write-behind stage that stores received output files in their final
+ * location, so the thread handing them over does not wait for the disk.
+ *
+ * Files are queued in a bounded queue, and moved to their target by a number
+ * of writer threads. When the queue is full, the thread handing over a file
+ * waits, which slows down the acceptance of new results. The directories
+ * created for the targets are remembered, so each is only checked once.
+ *
+ * Optionally, the stored files are made durable in batches: every interval,
+ * a sync thread forces all files stored since the previous batch to disk,
+ * in the order in which they were stored.
+ */
+public class WriteBehind {
+
+    /** A file to store or delete */
+    private static class Entry {
+        final File source;
+
+        /** The target of the file, or null if it must be deleted */
+        final File target;
+
+        /** Called once the file has been handled, or null */
+        final Runnable done;
+
+        Entry(File source, File target, Runnable done) {
+            this.source = source;
+            this.target = target;
+            this.done = done;
+        }
+    }
+
+    /** Entry that tells a writer thread to stop */
+    private static final Entry STOP = new Entry(null, null, null);
+
+    /** Thread that stores the queued files */
+    private class Writer extends Thread {
+
+        Writer(int i) {
+            super("WriteBehind writer " + i);
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                Entry e = queue.take();
+
+                while (e != STOP) {
+                    handle(e);
+                    e = queue.take();
+                }
+            } catch (InterruptedException e) {
+                // stop
+            }
+        }
+    }
+
+    /** Thread that forces the stored files to disk at regular intervals */
+    private class Syncer extends Thread {
+
+        Syncer() {
+            super("WriteBehind syncer");
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (!stopped) {
+                try {
+                    Thread.sleep(syncInterval);
+                } catch (InterruptedException e) {
+                    // sync and check if we are done
+                }
+
+                sync();
+            }
+        }
+    }
+
+    /** The files waiting to be stored */
+    private final LinkedBlockingQueue<Entry> queue;
+
+    /** The writer threads */
+    private final Writer[] writers;
+
+    /** The sync thread, or null if files are not forced to disk */
+    private final Syncer syncer;
+
+    /** The interval in milliseconds at which stored files are forced to disk */
+    private final long syncInterval;
+
+    /** The stored files that have not been forced to disk yet, in the order they were stored */
+    private final ConcurrentLinkedQueue<File> unsynced = new ConcurrentLinkedQueue<File>();
+
+    /** The directories known to exist */
+    private final ConcurrentHashMap<File, Boolean> dirs = new ConcurrentHashMap<File, Boolean>();
+
+    /** Set when the stage is shut down */
+    private volatile boolean stopped = false;
+
+    /** Statistics */
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong synced = new AtomicLong();
+    private final AtomicLong syncTime = new AtomicLong();
+    private final AtomicLong maxBacklog = new AtomicLong();
+    private final long start = System.currentTimeMillis();
+
+    /**
+     * Constructor to create and start a WriteBehind stage
+     *
+     * @param threads the number of writer threads.
+     * @param capacity the number of files that may be queued.
+     * @param syncInterval the interval in milliseconds at which stored files are forced to disk, or 0 to never force them.
+     */
+    public WriteBehind(int threads, int capacity, long syncInterval) {
+        this.queue = new LinkedBlockingQueue<Entry>(Math.max(1, capacity));
+        this.syncInterval = syncInterval;
+
+        writers = new Writer[Math.max(1, threads)];
+
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new Writer(i);
+            writers[i].start();
+        }
+
+        if (syncInterval > 0) {
+            syncer = new Syncer();
+            syncer.start();
+        } else {
+            syncer = null;
+        }
+    }
+
+    /**
+     * Queue an entry, waiting while the queue is full.
+     *
+     * @param e the entry to queue.
+     */
+    private void enqueue(Entry e) {
+        boolean interrupted = false;
+
+        while (true) {
+            try {
+                queue.put(e);
+                break;
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        long backlog = queue.size();
+        long max = maxBacklog.get();
+
+        while (backlog > max && !maxBacklog.compareAndSet(max, backlog)) {
+            max = maxBacklog.get();
+        }
+    }
+
+    /**
+     * Queue a file to be moved to its target.
+     *
+     * @param source the file to store.
+     * @param target the final location of the file.
+     * @param done called once the file has been handled, or null.
+     */
+    public void store(File source, File target, Runnable done) {
+        enqueue(new Entry(source, target, done));
+    }
+
+    /**
+     * Queue a file to be deleted.
+     *
+     * @param file the file to delete.
+     * @param done called once the file has been deleted, or null.
+     */
+    public void delete(File file, Runnable done) {
+        enqueue(new Entry(file, null, done));
+    }
+
+    /**
+     * Makes sure a directory exists, creating it if needed.
+     *
+     * @param dir the directory.
+     * @throws IOException if the directory could not be created.
+     */
+    private void ensureDir(File dir) throws IOException {
+        if (dir == null || dirs.containsKey(dir)) {
+            return;
+        }
+
+        if (!dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Cannot create directory " + dir);
+        }
+
+        dirs.put(dir, Boolean.TRUE);
+    }
+
+    /**
+     * Handle a queued entry.
+     *
+     * @param e the entry.
+     */
+    private void handle(Entry e) {
+        try {
+            if (e.target == null) {
+                e.source.delete();
+                return;
+            }
+
+            long length = e.source.length();
+
+            try {
+                ensureDir(e.target.getAbsoluteFile().getParentFile());
+                FileUtils.move(e.source, e.target);
+
+                stored.incrementAndGet();
+                storedBytes.addAndGet(length);
+
+                if (syncer != null) {
+                    unsynced.add(e.target);
+                }
+            } catch (Exception ex) {
+                System.out.println("Failed to store output file: " + e.target);
+                ex.printStackTrace();
+                failed.incrementAndGet();
+                e.source.delete();
+            }
+        } finally {
+            if (e.done != null) {
+                e.done.run();
+            }
+        }
+    }
+
+    /** Force the files stored since the previous sync to disk, in the order they were stored. */
+    private void sync() {
+        long t = System.currentTimeMillis();
+        long count = 0;
+
+        File file = unsynced.poll();
+
+        while (file != null) {
+            RandomAccessFile f = null;
+
+            try {
+                f = new RandomAccessFile(file, "rw");
+                f.getChannel().force(true);
+                count++;
+            } catch (IOException e) {
+                System.err.println("Failed to sync output file: " + file + ": " + e);
+            } finally {
+                FileUtils.close(f);
+            }
+
+            file = unsynced.poll();
+        }
+
+        if (count > 0) {
+            synced.addAndGet(count);
+            syncTime.addAndGet(System.currentTimeMillis() - t);
+        }
+    }
+
+    /** @return the number of files waiting to be stored. */
+    public int backlog() {
+        return queue.size();
+    }
+
+    /** Waits until all queued files have been stored and synced, and stops the threads. */
+    public void shutdown() {
+        for (int i = 0; i < writers.length; i++) {
+            enqueue(STOP);
+        }
+
+        for (Writer w : writers) {
+            try {
+                w.join();
+            } catch (InterruptedException e) {
+                // ignored
+            }
+        }
+
+        if (syncer != null) {
+            stopped = true;
+            syncer.interrupt();
+
+            try {
+                syncer.join();
+            } catch (InterruptedException e) {
+                // ignored
+            }
+        }
+    }
+
+    public String toString() {
+        long time = Math.max(1, System.currentTimeMillis() - start);
+        double mb = storedBytes.get() / (1024.0 * 1024.0);
+
+        return "WriteBehind: stored " + stored.get() + " files (" + String.format("%.1f", mb)
+                + " MB, " + String.format("%.2f", mb * 1000.0 / time) + " MB/s), "
+                + failed.get() + " failed, backlog " + queue.size() + " (max "
+                + maxBacklog.get() + "), synced " + synced.get() + " files in "
+                + syncTime.get() + " ms";
+    }
+}